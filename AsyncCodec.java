@@ -0,0 +1,273 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Codes files without blocking the calling thread. Files are read and
+ * written through AsynchronousFileChannel, and the coding itself runs on
+ * the executor given. A job can be cancelled through its future; it then
+ * stops at the next chunk read or written, or once the coding is done.
+ */
+public class AsyncCodec {
+    private static final int CHUNK_SIZE = 1 << 20;
+    private EncodeOptions options;
+    private ExecutorService executor;
+
+    /**
+     * What a finished job did
+     */
+    public static class Result {
+        private long bytesIn;
+        private long bytesOut;
+        private long nanos;
+
+        private Result(long in, long out, long time) {
+            bytesIn = in;
+            bytesOut = out;
+            nanos = time;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Told how far a job has come, on whichever thread did the work
+     */
+    public interface Listener {
+        /**
+         * @param phase "read", "code" or "write"
+         * @param done the bytes handled so far in this phase
+         * @param total the bytes the phase will handle
+         */
+        void progress(String phase, long done, long total);
+    }
+
+    /**
+     * Creates a codec that works on the common fork join pool
+     * @param opts the options files are coded with
+     */
+    public AsyncCodec(EncodeOptions opts) {
+        this(opts, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a codec
+     * @param opts the options files are coded with, a shared table in
+     *             them is used for decoding as well
+     * @param exec runs the coding and the file channel completions
+     */
+    public AsyncCodec(EncodeOptions opts, ExecutorService exec) {
+        options = opts;
+        executor = exec;
+    }
+
+    /**
+     * Starts coding a file
+     * @param from the file to be encoded
+     * @param to the file to write the encoded result to
+     * @param listener told of progress, or null
+     * @return completes with the sizes once the result is written
+     */
+    public CompletableFuture<Result> encodeAsync(File from, File to, Listener listener) {
+        return start(from, to, true, listener);
+    }
+
+    /**
+     * Starts decoding a file, every frame of it
+     * @param from the file to be decoded
+     * @param to the file to write the decoded result to
+     * @param listener told of progress, or null
+     * @return completes with the sizes once the result is written
+     */
+    public CompletableFuture<Result> decodeAsync(File from, File to, Listener listener) {
+        return start(from, to, false, listener);
+    }
+
+    private CompletableFuture<Result> start(File from, File to, boolean encode, Listener listener) {
+        CompletableFuture<Result> job = new CompletableFuture<>();
+        long start = System.nanoTime();
+        long[] bytesIn = new long[1];
+        read(from, job, listener)
+                .thenApplyAsync(given -> {
+                    bytesIn[0] = given.length;
+                    return code(given, encode, job, listener);
+                }, executor)
+                .thenCompose(coded -> write(to, coded, job, listener))
+                .whenComplete((coded, e) -> {
+                    if(e != null){
+                        job.completeExceptionally(e);
+                    }
+                    else{
+                        job.complete(new Result(bytesIn[0], coded.length, System.nanoTime() - start));
+                    }
+                });
+        return job;
+    }
+
+    /**
+     * Codes the bytes of a file in memory
+     * @param given the bytes read
+     * @param encode true -> encode, false -> decode
+     * @param job the job, checked for cancellation
+     * @param listener told of progress, or null
+     * @return the coded bytes
+     */
+    private byte[] code(byte[] given, boolean encode, CompletableFuture<Result> job, Listener listener) {
+        if(job.isDone()){
+            throw new CancellationException();
+        }
+        ByteArrayOutputStream coded = new ByteArrayOutputStream(encode ? given.length / 2 + 64 : (int) Math.min(2L * given.length, Integer.MAX_VALUE - 8));
+        if(encode){
+            HuffmanEncoder encoder = new HuffmanEncoder(given, coded, options);
+            if(encoder.getFailure() != null){
+                throw new UncheckedIOException(encoder.getFailure());
+            }
+        }
+        else{
+            HuffmanDecoder decoder = new HuffmanDecoder(given, coded, options.getSharedTable());
+            if(decoder.getFailure() != null){
+                throw new UncheckedIOException(decoder.getFailure());
+            }
+        }
+        report(listener, "code", given.length, given.length);
+        return coded.toByteArray();
+    }
+
+    /**
+     * Reads a whole file, one chunk at a time
+     * @param from the file to read
+     * @param job the job, checked for cancellation
+     * @param listener told of progress, or null
+     * @return completes with the contents of the file
+     */
+    private CompletableFuture<byte[]> read(File from, CompletableFuture<Result> job, Listener listener) {
+        CompletableFuture<byte[]> read = new CompletableFuture<>();
+        try{
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(from.toPath(),
+                    EnumSet.of(StandardOpenOption.READ), executor);
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE - 8){
+                close(channel);
+                throw new IOException(from + " is too large to code in memory!");
+            }
+            transfer(channel, ByteBuffer.allocate((int) size), true, read, job, listener);
+        }
+        catch(IOException e){
+            read.completeExceptionally(e);
+        }
+        return read;
+    }
+
+    /**
+     * Writes the coded bytes to a file, one chunk at a time
+     * @param to the file to write
+     * @param coded the bytes to write
+     * @param job the job, checked for cancellation
+     * @param listener told of progress, or null
+     * @return completes with the bytes written once done
+     */
+    private CompletableFuture<byte[]> write(File to, byte[] coded, CompletableFuture<Result> job, Listener listener) {
+        CompletableFuture<byte[]> written = new CompletableFuture<>();
+        try{
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(to.toPath(),
+                    EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), executor);
+            transfer(channel, ByteBuffer.wrap(coded), false, written, job, listener);
+        }
+        catch(IOException e){
+            written.completeExceptionally(e);
+        }
+        return written.whenComplete((bytes, e) -> {
+            if(e != null){
+                //a partial result is of no use
+                to.delete();
+            }
+        });
+    }
+
+    /**
+     * Reads or writes the next chunk of a buffer, and chains the chunk
+     * after it once the channel is done with this one
+     * @param channel the file channel
+     * @param buffer the buffer, its position is the file position
+     * @param reading true -> read into the buffer, false -> write it out
+     * @param done completes with the buffer's bytes once all are handled
+     * @param job the job, checked for cancellation
+     * @param listener told of progress, or null
+     */
+    private void transfer(AsynchronousFileChannel channel, ByteBuffer buffer, boolean reading,
+                          CompletableFuture<byte[]> done, CompletableFuture<Result> job, Listener listener) {
+        if(job.isDone()){
+            //cancelled, leave the rest
+            close(channel);
+            done.completeExceptionally(new CancellationException());
+            return;
+        }
+        if(!buffer.hasRemaining()){
+            close(channel);
+            done.complete(buffer.array());
+            return;
+        }
+        buffer.limit(Math.min(buffer.capacity(), buffer.position() + CHUNK_SIZE));
+        CompletionHandler<Integer, Void> next = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                if(count < 0){
+                    //file got shorter while being read
+                    close(channel);
+                    done.completeExceptionally(new IOException("File ended early!"));
+                    return;
+                }
+                report(listener, reading ? "read" : "write", buffer.position(), buffer.capacity());
+                buffer.limit(buffer.capacity());
+                transfer(channel, buffer, reading, done, job, listener);
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                close(channel);
+                done.completeExceptionally(e);
+            }
+        };
+        if(reading){
+            channel.read(buffer, buffer.position(), null, next);
+        }
+        else{
+            channel.write(buffer, buffer.position(), null, next);
+        }
+    }
+
+    private static void report(Listener listener, String phase, long done, long total) {
+        if(listener != null){
+            listener.progress(phase, done, total);
+        }
+    }
+
+    private static void close(AsynchronousFileChannel channel) {
+        try{
+            channel.close();
+        }
+        catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+public class BatchCompressor {
+    private EncodeOptions options;
+    private int encoders;
+    private int maxOpen;
+    private AtomicLong files;
+    private AtomicLong bytesIn;
+    private AtomicLong bytesOut;
+    private long elapsed;
+
+    /**
+     * Creates a batch compressor that reads up to 256 files at once
+     * @param opts the options every file is coded with
+     * @param encodeThreads the most files being coded at once
+     */
+    public BatchCompressor(EncodeOptions opts, int encodeThreads) {
+        this(opts, encodeThreads, 256);
+    }
+
+    /**
+     * Creates a batch compressor. Every file is read and written on a
+     * thread of its own (a virtual thread when the JVM has them), since
+     * those threads mostly wait on the file system. The coding itself
+     * is CPU bound and runs on a fixed pool of encodeThreads.
+     * @param opts the options every file is coded with
+     * @param encodeThreads the most files being coded at once
+     * @param openFiles the most files held in memory at once
+     */
+    public BatchCompressor(EncodeOptions opts, int encodeThreads, int openFiles) {
+        if(encodeThreads <= 0 || openFiles <= 0){
+            throw new IllegalArgumentException("Thread and file limits must be positive!");
+        }
+        options = opts;
+        encoders = encodeThreads;
+        maxOpen = openFiles;
+        files = new AtomicLong();
+        bytesIn = new AtomicLong();
+        bytesOut = new AtomicLong();
+    }
+
+    /**
+     * Codes every file under a directory into the same place under
+     * another directory, with ".huf" added to the name
+     * @param srcDir the directory to compress
+     * @param destDir the directory to write the coded files to
+     * @throws IOException if any file could not be compressed
+     */
+    public void compress(File srcDir, File destDir) throws IOException {
+        Path root = srcDir.toPath();
+        Path dest = destDir.toPath();
+        Semaphore open = new Semaphore(maxOpen);
+        ExecutorService io = newIoExecutor();
+        ExecutorService cpu = Executors.newFixedThreadPool(encoders);
+        List<Future<Object>> jobs = new ArrayList<>();
+        long start = System.nanoTime();
+        try(Stream<Path> walk = Files.walk(root)){
+            walk.filter(Files::isRegularFile).forEach(p -> {
+                //one io thread per file
+                Path to = dest.resolve(root.relativize(p).toString() + ".huf");
+                jobs.add(io.submit(() -> {
+                    compressFile(p, to, open, cpu);
+                    return null;
+                }));
+            });
+            for(Future<Object> job : jobs){
+                job.get();
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch was interrupted!", e);
+        }
+        catch(ExecutionException e){
+            throw new IOException("Could not compress a file!", e.getCause());
+        }
+        finally{
+            io.shutdownNow();
+            cpu.shutdownNow();
+            elapsed += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Reads a file, hands it to the coding pool and writes the result
+     * @param from the file to compress
+     * @param to the file to write
+     * @param open limits the files held in memory
+     * @param cpu the coding pool
+     * @throws Exception
+     */
+    private void compressFile(Path from, Path to, Semaphore open, ExecutorService cpu) throws Exception {
+        open.acquire();
+        try{
+            byte[] given = Files.readAllBytes(from);
+            Future<byte[]> coded = cpu.submit(() -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(given.length / 2 + 64);
+                HuffmanEncoder encoder = new HuffmanEncoder(given, out, options);
+                if(encoder.getFailure() != null){
+                    throw encoder.getFailure();
+                }
+                return out.toByteArray();
+            });
+            byte[] result = coded.get();
+            if(to.getParent() != null){
+                Files.createDirectories(to.getParent());
+            }
+            Files.write(to, result);
+            files.incrementAndGet();
+            bytesIn.addAndGet(given.length);
+            bytesOut.addAndGet(result.length);
+        }
+        finally{
+            open.release();
+        }
+    }
+
+    /**
+     * Makes an executor with a virtual thread per task when the JVM has
+     * virtual threads (Java 21 and up), otherwise a thread per task
+     * @return the executor for file reads and writes
+     */
+    private static ExecutorService newIoExecutor() {
+        try{
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        }
+        catch(ReflectiveOperationException e){
+            //no virtual threads, the open file limit bounds the threads
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * @return the number of files compressed
+     */
+    public long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return the number of bytes read
+     */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * @return the bytes read per second across all batches so far
+     */
+    public double getThroughput() {
+        if(elapsed == 0){
+            return 0;
+        }
+        return bytesIn.get() / (elapsed / 1e9);
+    }
+}
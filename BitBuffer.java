@@ -1,18 +1,29 @@
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BitBuffer{
+    private static final LongAdder flushes = CodecMetrics.counter("bitbuffer.flushes");
+    private static final int BYTES_SIZE = 1 << 13;
     private File file;
-    private boolean bits[];
-    private int index;
-    private int buffSize;
+    private ByteBuffer bytes;
+    private long acc;
+    private int accBits;
+    private long loaded;
+    private long fake;
+    private boolean eof;
     private boolean writable;
-    private BufferedOutputStream outBuff;
-    private BufferedInputStream inBuff; 
+    private WritableByteChannel out;
+    private ReadableByteChannel in;
+    private IOException failure;
 
     /**
      * Initializes a BitBuffer operating on a given
@@ -22,29 +33,66 @@ public class BitBuffer{
      */
     public BitBuffer(File f, boolean mode){
         file = f;
-        buffSize = 128; //16 bytes
-        bits = new boolean[buffSize];
-        index = 0;
         writable = mode;
         
         try{
             if(writable){
                 //mode is writing
-                FileOutputStream fos = new FileOutputStream(file);
-                outBuff = new BufferedOutputStream(fos);
+                out = new FileOutputStream(file).getChannel();
             }
             else{
                 //mode is reading
-                FileInputStream fis = new FileInputStream(file);
-                inBuff = new BufferedInputStream(fis);
-                fillBuff();
+                in = new FileInputStream(file).getChannel();
             }
+            borrow();
         }
         catch(IOException q){
             q.printStackTrace();
         }
     }
 
+    /**
+     * Initializes a BitBuffer writing to a given stream
+     * @param out the stream to write to, closed by close()
+     */
+    public BitBuffer(OutputStream out){
+        writable = true;
+        if(out instanceof FileOutputStream){
+            //straight from the pooled buffer to the file
+            this.out = ((FileOutputStream) out).getChannel();
+        }
+        else{
+            this.out = Channels.newChannel(out);
+        }
+        borrow();
+    }
+
+    /**
+     * Initializes a BitBuffer reading from a given stream
+     * @param in the stream to read from, closed by close()
+     */
+    public BitBuffer(InputStream in){
+        writable = false;
+        if(in instanceof FileInputStream){
+            //straight from the file to the pooled buffer
+            this.in = ((FileInputStream) in).getChannel();
+        }
+        else{
+            this.in = Channels.newChannel(in);
+        }
+        borrow();
+    }
+
+    /**
+     * Borrows the byte buffer from the shared pool, empty when reading
+     */
+    private void borrow(){
+        bytes = BufferPool.shared().acquire(BYTES_SIZE);
+        if(!writable){
+            bytes.limit(0);
+        }
+    }
+
     /**
      * Writes one bit to the bit buffer
      * @param bitVal the value of the bit to be buffered
@@ -52,19 +100,78 @@ public class BitBuffer{
     public void writeBit(boolean bitVal){
         if(writable){
             //can write to buffer
-            if(index >= buffSize){
-                //the buffer is full
-                writeBuff();
-            }
-            //buffer not full, insert new bit to buffer
-            bits[index] = bitVal;
-            index++;
+            pack(bitVal ? 1 : 0, 1);
         }
         else{
             System.out.println("Can not perform operation; mode is read.");
         }
     }
 
+    /**
+     * Writes the low bits of a code to the buffer, most significant first
+     * @param code the bits to be written
+     * @param length the number of bits of code to write, up to 64
+     */
+    public void writeBits(long code, int length){
+        if(!writable){
+            System.out.println("Can not perform operation; mode is read.");
+        }
+        else if(length > 32){
+            //high part first, so a piece never overflows the accumulator
+            pack(code >>> 32, length - 32);
+            pack(code, 32);
+        }
+        else if(length > 0){
+            pack(code, length);
+        }
+    }
+
+    /**
+     * Adds up to 32 bits to the accumulator and moves every whole byte
+     * in it to the byte buffer. Fewer than 8 bits are left behind, so the
+     * accumulator never holds more than 39.
+     * @param code the bits to be written, in the low bits
+     * @param length the number of bits, 1 to 32
+     */
+    private void pack(long code, int length){
+        acc = (acc << length) | (code & (-1L >>> (64 - length)));
+        accBits += length;
+        while(accBits >= 8){
+            //a whole byte is assembled
+            accBits -= 8;
+            if(!bytes.hasRemaining()){
+                writeBuff();
+            }
+            bytes.put((byte) (acc >>> accBits));
+        }
+    }
+
+    /**
+     * Writes a long as 8 whole bytes, big endian
+     * @param val the value to be written
+     */
+    public void writeLong(long val){
+        writeBits(val, 64);
+    }
+
+    /**
+     * Writes an int as 4 whole bytes, big endian
+     * @param val the value to be written
+     */
+    public void writeInt(int val){
+        writeBits(val, 32);
+    }
+
+    /**
+     * Pads the buffer with 0 bits up to the next byte boundary
+     */
+    public void alignWrite(){
+        if(accBits > 0){
+            //part of a byte is assembled
+            pack(0, 8 - accBits);
+        }
+    }
+
     /**
      * Writes the important bits of a byte to the buffer
      * @param byt the byte to be compressed and written
@@ -98,15 +205,7 @@ public class BitBuffer{
      */
     public void writeByte(byte byt){
         if(writable){
-            int i = 0;
-            byte mask;
-            while(i < 8){
-                //for every bit
-                mask = (byte) ( 0x1 << (7 - i) );
-                writeBit((byt & mask) != 0);
-
-                i++;
-            }
+            pack(byt, 8);
         }
         else{
             System.out.println("Can not perform operation; mode is read.");
@@ -122,59 +221,68 @@ public class BitBuffer{
     }
 
     /**
-     * Writes the contents of the buffer to the file
+     * Writes the assembled bytes to the file
      * and cleans the buffer
      */
     private void writeBuff(){
-        for(int i = 0; i < index; i += 8){
-            //for the minimum number of bytes to write from buffer
-            Byte b = 0x0;
-            for(int j = i; j < i + 8; j++){
-                //for every bit
-                b = (byte)(b << 1); 
-                if(bits[j]){
-                    //flip bottom bit to 1
-                    b =  (byte)(b ^ 0x1);
-                }
-            }
-            
-            //write assembled byte to file buffer
-            try{
-                outBuff.write(b);
-            }
-            catch(IOException e){
-                e.printStackTrace();
+        flushes.increment();
+        bytes.flip();
+        try{
+            while(bytes.hasRemaining()){
+                out.write(bytes);
             }
         }
+        catch(IOException e){
+            e.printStackTrace();
+            fail(e);
+        }
+        bytes.clear();
+    }
+
+    /**
+     * @return the first error writing stopped at, or null if every
+     *         byte reached the file
+     */
+    public IOException getFailure(){
+        return failure;
+    }
 
-        for(int i = 0; i < index; i++){
-            //for every bit in the buffer
-            bits[i] = false;
+    private void fail(IOException e){
+        if(failure == null){
+            failure = e;
         }
-        index = 0;
     }
 
     /**
-     * Empties the buffer and closes the file
+     * Empties the buffer, closes the file and gives the buffer back to
+     * the pool. A partly assembled last byte is padded with 0 bits.
      */
     public void close(){
+        if(bytes == null){
+            //closed already
+            return;
+        }
         if(writable){
+            alignWrite();
             writeBuff();
             try{
-                outBuff.close();
+                out.close();
             }
             catch(IOException e){
                 e.printStackTrace();
+                fail(e);
             }
         }
         else{
             try{
-                inBuff.close();
+                in.close();
             }
             catch(IOException e){
                 e.printStackTrace();
             }
         }
+        BufferPool.shared().release(bytes);
+        bytes = null;
     }
 
     /**
@@ -185,12 +293,12 @@ public class BitBuffer{
         boolean bitVal;
         if(!writable){
             //can read this buffer
-            if(index >= buffSize){
+            if(accBits == 0){
                 //get more to read
-                fillBuff();
+                fillBuff(1);
             }
-            bitVal = bits[index];
-            index++;
+            accBits--;
+            bitVal = ((acc >>> accBits) & 1) != 0;
         }
         else{
             bitVal = false;
@@ -207,17 +315,11 @@ public class BitBuffer{
         byte b = 0;
         if(!writable){
             //can read
-            int i = 0;
-            while(i < 8){
-                //for every bit in the byte
-                boolean bit = readBit();
-                b = (byte) (b << 1);
-                if(bit){
-                    //set a 1 in the bottom bit
-                    b = (byte) (b | 0x1);
-                }
-                i++;
+            if(accBits < 8){
+                fillBuff(8);
             }
+            accBits -= 8;
+            b = (byte) (acc >>> accBits);
         }
         else{
             System.out.println("Can not perform operation; mode is write.");
@@ -227,31 +329,136 @@ public class BitBuffer{
     }
 
     /**
-     * Fills the buffer with the next inputs from the file
+     * Reads a long written as 8 whole bytes, big endian
+     * @return the long taken from the buffer
      */
-    private void fillBuff(){
-        index = 0;
-        for(int i = 0; i < buffSize; i += 8){
-            //for every byte in the buffer
-            Byte b;
-            try{
-                b = (byte) inBuff.read();
-                for(int j = i; j < i + 8; j++){
-                    //for every bit in the byte
-                    byte mask = (byte) ( 0x1 << (8 - (j % 8) - 1) );
-                    if((b & mask) != 0){
-                        //bit is set
-                        bits[j] = true;
-                    }
-                    else{
-                        bits[j] = false;
-                    }
+    public long readLong(){
+        long val = 0;
+        for(int i = 0; i < 8; i++){
+            //for every byte of the long
+            val = (val << 8) | (readByte() & 0xFF);
+        }
+        return val;
+    }
+
+    /**
+     * Reads an int written as 4 whole bytes, big endian
+     * @return the int taken from the buffer
+     */
+    public int readInt(){
+        int val = 0;
+        for(int i = 0; i < 4; i++){
+            //for every byte of the int
+            val = (val << 8) | (readByte() & 0xFF);
+        }
+        return val;
+    }
+
+    /**
+     * @return whether every bit of the file has been read
+     */
+    public boolean atEnd(){
+        if(accBits == 0){
+            //get more to check
+            fillBuff(1);
+        }
+        return bitsRead() >= loaded - fake;
+    }
+
+    /**
+     * @return whether more bits have been read than the file holds, the
+     * ones past its end being made up
+     */
+    public boolean pastEnd(){
+        return bitsRead() > loaded - fake;
+    }
+
+    /**
+     * Reads the next whole byte, the buffer has to be at a byte boundary.
+     * The byte stays in the accumulator afterwards, so unreadBits can
+     * step back into it.
+     * @return the byte, 0 to 255, or -1 at end of file
+     */
+    public int readAlignedByte(){
+        if(accBits < 8){
+            fillBuff(8);
+        }
+        if(bitsRead() >= loaded - fake){
+            return -1;
+        }
+        accBits -= 8;
+        return (int) (acc >>> accBits) & 0xFF;
+    }
+
+    /**
+     * Steps back over the last bits of the byte readAlignedByte returned,
+     * so they are read again
+     * @param count the number of bits to give back, 0 to 8
+     */
+    public void unreadBits(int count){
+        accBits += count;
+    }
+
+    /**
+     * @return the number of bits read from the start of the stream
+     */
+    public long bitsRead(){
+        return loaded - accBits;
+    }
+
+    /**
+     * @return whether the next bit read starts a byte
+     */
+    public boolean isAligned(){
+        return accBits % 8 == 0;
+    }
+
+    /**
+     * Skips the remaining bits of the current byte
+     */
+    public void alignRead(){
+        accBits -= accBits % 8;
+    }
+
+    /**
+     * Moves input bytes into the accumulator, at least enough for the
+     * bits needed and as many more as are already read from the file
+     * and fit. Past the end of file 1 bits are supplied, which are not
+     * counted as real; pastEnd() tells whether any of them were read.
+     * @param needed the number of bits the accumulator has to hold, up to 56
+     */
+    private void fillBuff(int needed){
+        while(accBits < needed || (bytes.hasRemaining() && accBits <= 56)){
+            //for every byte that fits
+            if(!bytes.hasRemaining() && !eof){
+                //the byte buffer is used up, read more
+                bytes.clear();
+                int count;
+                try{
+                    count = in.read(bytes);
                 }
-            } 
-            catch(IOException e){
-                e.printStackTrace();
+                catch(IOException e){
+                    e.printStackTrace();
+                    count = -1;
+                }
+                bytes.flip();
+                if(count == -1){
+                    //end of file, bits past here are not real
+                    eof = true;
+                }
+                continue;
+            }
+            int b;
+            if(bytes.hasRemaining()){
+                b = bytes.get() & 0xFF;
+            }
+            else{
+                b = 0xFF;
+                fake += 8;
             }
+            acc = (acc << 8) | b;
+            accBits += 8;
+            loaded += 8;
         }
-        index = 0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct buffers for the codec's I/O, so buffers live outside
+ * the heap and are not made again for every file. Sizes are rounded up
+ * to a power of two from 4 KB to 1 MB, and each size has its own free
+ * list. Every thread keeps a few buffers of each size to itself, so a
+ * thread that codes one file after another does not touch the shared
+ * lists at all.
+ *
+ * The pool never holds more direct memory than its limit. Once the
+ * limit is reached, and for sizes above 1 MB, heap buffers are handed
+ * out instead; giving them back does nothing.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 20;
+    private static final int THREAD_CACHED = 2;
+    private static final Cleaner cleaner = Cleaner.create();
+    private static final LongAdder hits = CodecMetrics.counter("pool.hits");
+    private static final LongAdder misses = CodecMetrics.counter("pool.misses");
+    private static final LongAdder overflows = CodecMetrics.counter("pool.overflows");
+    private static final BufferPool shared = new BufferPool(64L << 20);
+    private long limit;
+    private AtomicLong reserved;
+    private AtomicLong lent;
+    private ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private ThreadLocal<ThreadCache> local;
+    private Map<ByteBuffer, Throwable> sites;
+
+    /**
+     * The buffers one thread keeps. Once the thread is gone and its
+     * cache with it, the buffers in it no longer count against the limit.
+     */
+    private static class ThreadCache {
+        private ArrayDeque<ByteBuffer>[] sizes;
+
+        private ThreadCache(BufferPool pool) {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ArrayDeque<ByteBuffer>[] made = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+            sizes = made;
+            for(int i = 0; i < sizes.length; i++){
+                sizes[i] = new ArrayDeque<>(THREAD_CACHED);
+            }
+            ArrayDeque<ByteBuffer>[] held = sizes;
+            AtomicLong counted = pool.reserved;
+            cleaner.register(this, () -> {
+                for(ArrayDeque<ByteBuffer> size : held){
+                    for(ByteBuffer b : size){
+                        counted.addAndGet(-b.capacity());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a pool
+     * @param maxDirectBytes the most direct memory the pool may hold,
+     *                       lent and free buffers together
+     */
+    public BufferPool(long maxDirectBytes) {
+        if(maxDirectBytes < 0){
+            throw new IllegalArgumentException("Limit can not be negative!");
+        }
+        limit = maxDirectBytes;
+        reserved = new AtomicLong();
+        lent = new AtomicLong();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<ByteBuffer>[] made = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        free = made;
+        for(int i = 0; i < free.length; i++){
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+        local = ThreadLocal.withInitial(() -> new ThreadCache(this));
+    }
+
+    /**
+     * @return the pool the codec's own classes borrow from
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Borrows a cleared buffer
+     * @param size the least capacity wanted
+     * @return a direct buffer, or a heap buffer if there is no direct
+     * memory left under the limit or the size is above 1 MB
+     */
+    public ByteBuffer acquire(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        if(shift > MAX_SHIFT){
+            overflows.increment();
+            return ByteBuffer.allocate(size);
+        }
+        int index = shift - MIN_SHIFT;
+        ByteBuffer b = local.get().sizes[index].pollFirst();
+        if(b == null){
+            b = free[index].poll();
+        }
+        if(b != null){
+            hits.increment();
+        }
+        else if(reserved.addAndGet(1L << shift) <= limit){
+            //room for a new one
+            misses.increment();
+            b = ByteBuffer.allocateDirect(1 << shift);
+        }
+        else{
+            reserved.addAndGet(-(1L << shift));
+            overflows.increment();
+            return ByteBuffer.allocate(size);
+        }
+        lent.incrementAndGet();
+        if(sites != null){
+            sites.put(b, new Throwable("Buffer of " + b.capacity() + " bytes borrowed here"));
+        }
+        return b.clear();
+    }
+
+    /**
+     * Gives a buffer back. Only buffers acquire handed out may be given
+     * back, and only once; the caller must not use it afterwards.
+     * @param b the buffer, or null
+     */
+    public void release(ByteBuffer b) {
+        if(b == null || !b.isDirect()){
+            //heap buffers are left to the garbage collector
+            return;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(b.capacity());
+        if(b.capacity() != 1 << shift || shift < MIN_SHIFT || shift > MAX_SHIFT){
+            throw new IllegalArgumentException("Buffer of " + b.capacity() + " bytes is not from this pool!");
+        }
+        lent.decrementAndGet();
+        if(sites != null){
+            sites.remove(b);
+        }
+        b.clear();
+        ArrayDeque<ByteBuffer> cached = local.get().sizes[shift - MIN_SHIFT];
+        if(cached.size() < THREAD_CACHED){
+            cached.addFirst(b);
+        }
+        else{
+            free[shift - MIN_SHIFT].offer(b);
+        }
+    }
+
+    /**
+     * Turns on recording where every lent buffer was borrowed, so
+     * buffers that are never given back can be found with getLeaks()
+     * @param on whether to record
+     */
+    public synchronized void setLeakTracking(boolean on) {
+        sites = on ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    /**
+     * @return where each buffer lent since tracking was turned on and not
+     * given back yet was borrowed, empty if tracking is off
+     */
+    public List<Throwable> getLeaks() {
+        Map<ByteBuffer, Throwable> tracked = sites;
+        if(tracked == null){
+            return new ArrayList<>();
+        }
+        synchronized(tracked){
+            return new ArrayList<>(tracked.values());
+        }
+    }
+
+    /**
+     * @return the number of direct buffers lent and not given back
+     */
+    public long getLent() {
+        return lent.get();
+    }
+
+    /**
+     * @return the direct memory the pool holds, lent and free buffers together
+     */
+    public long getReservedBytes() {
+        return reserved.get();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * A finite state machine built from a Huffman tree that decodes a whole
+ * input byte per step. A state is an inner node of the tree, the point
+ * reached part way through a code. For every state and input byte the
+ * table holds the state after the byte and the 0 to 8 symbols it
+ * finishes. Stepping stops early at the escape symbol, since the raw
+ * symbol after it is not coded.
+ */
+public class ByteDecodeTable {
+    public static final int MAX_STATES = 1024;
+    private LetterData root;
+    private int escape;
+    private int states;
+    private int[] children;
+    private int[] next;
+    private byte[] counts;
+    private char[] symbols;
+    private byte[] ends;
+
+    /**
+     * Builds the table for a tree
+     * @param tree the root of the tree, with at least two leaves and
+     *             no more than MAX_STATES inner nodes
+     * @param escapeSymbol the symbol standing for escapes, -1 if none
+     */
+    public ByteDecodeTable(LetterData tree, int escapeSymbol) {
+        root = tree;
+        escape = escapeSymbol;
+        CodecMetrics.Phase phase = CodecMetrics.begin("buildStateTable");
+        int inner = countStates(root);
+        if(inner == 0 || inner > MAX_STATES){
+            throw new IllegalArgumentException("Tree has " + inner + " inner nodes!");
+        }
+        children = new int[2 * inner];
+        states = 0;
+        number(root);
+        next = new int[states * 256];
+        counts = new byte[states * 256];
+        symbols = new char[states * 256 * 8];
+        ends = new byte[states * 256 * 8];
+        for(int s = 0; s < states; s++){
+            for(int b = 0; b < 256; b++){
+                //for every state and input byte
+                step(s, b);
+            }
+        }
+        phase.end(0);
+    }
+
+    /**
+     * @param tree the root of a tree, or null
+     * @return the number of states a table for the tree would have
+     */
+    public static int countStates(LetterData tree) {
+        if(tree == null || isLeaf(tree)){
+            return 0;
+        }
+        return 1 + countStates(tree.left) + countStates(tree.right);
+    }
+
+    private static boolean isLeaf(LetterData curr) {
+        return curr.left == null && curr.right == null;
+    }
+
+    /**
+     * Numbers the inner nodes in pre order, so the root is state 0, and
+     * fills in the children of each
+     * @param curr the current node of the tree
+     * @return the state of curr, or -(symbol + 1) if curr is a leaf
+     */
+    private int number(LetterData curr) {
+        if(isLeaf(curr)){
+            return -(curr.c.charAt(0) + 1);
+        }
+        int state = states++;
+        children[2 * state] = number(curr.left);
+        children[2 * state + 1] = number(curr.right);
+        return state;
+    }
+
+    /**
+     * Walks the 8 bits of a byte from a state and fills in its entry
+     * @param state the state the byte is read in
+     * @param b the input byte
+     */
+    private void step(int state, int b) {
+        int entry = state * 256 + b;
+        int count = 0;
+        int s = state;
+        for(int bit = 0; bit < 8; bit++){
+            //most significant bit first
+            int c = children[2 * s + ((b >> (7 - bit)) & 1)];
+            if(c >= 0){
+                s = c;
+                continue;
+            }
+            //leaf reached, a symbol is finished
+            symbols[entry * 8 + count] = (char) (-c - 1);
+            ends[entry * 8 + count] = (byte) (bit + 1);
+            count++;
+            s = 0;
+            if(-c - 1 == escape){
+                //raw bits follow, stepping stops here
+                break;
+            }
+        }
+        counts[entry] = (byte) count;
+        next[entry] = s;
+    }
+
+    /**
+     * @param state the current state
+     * @param bit the next input bit
+     * @return the next state, or -(symbol + 1) if the bit finishes a symbol
+     */
+    public int child(int state, boolean bit) {
+        return children[2 * state + (bit ? 1 : 0)];
+    }
+
+    /**
+     * @param state the current state
+     * @param b the input byte, 0 to 255
+     * @return the entry for reading b in state, used by the methods below
+     */
+    public int entry(int state, int b) {
+        return state * 256 + b;
+    }
+
+    /**
+     * @param entry the entry of a step
+     * @return the number of symbols the step finishes
+     */
+    public int count(int entry) {
+        return counts[entry];
+    }
+
+    /**
+     * @param entry the entry of a step
+     * @param i which of its symbols, from 0
+     * @return the symbol
+     */
+    public char symbol(int entry, int i) {
+        return symbols[entry * 8 + i];
+    }
+
+    /**
+     * @param entry the entry of a step
+     * @param i which of its symbols, from 0
+     * @return the number of bits of the byte used once the symbol is finished
+     */
+    public int end(int entry, int i) {
+        return ends[entry * 8 + i];
+    }
+
+    /**
+     * @param entry the entry of a step
+     * @return the state after the step
+     */
+    public int next(int entry) {
+        return next[entry];
+    }
+
+    /**
+     * @param entry the entry of a step
+     * @return whether the step stopped at the escape symbol
+     */
+    public boolean escaped(int entry) {
+        int count = counts[entry];
+        return count > 0 && symbols[entry * 8 + count - 1] == escape;
+    }
+
+    /**
+     * @return the number of states, the inner nodes of the tree
+     */
+    public int getStates() {
+        return states;
+    }
+
+    public LetterData getRoot() {
+        return root;
+    }
+
+    public int getEscape() {
+        return escape;
+    }
+}
@@ -0,0 +1,425 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A directory holding many files that are mostly the same as one
+ * another, each stretch of bytes coded and stored once. Files are cut
+ * into chunks where the bytes themselves say, so an insert early in a
+ * file only changes the chunks around it. Every chunk is named by its
+ * SHA-256; chunks already in the store are not coded again, and only
+ * new ones are Huffman coded into the pack. A manifest per file lists
+ * its chunks in order.
+ *
+ * The store is laid out as:
+ *   pack      - the coded chunks, one frame each, back to back
+ *   index     - the hash, pack offset and sizes of every chunk
+ *   table     - the table every chunk is coded with
+ *   manifests - one file per stored file, its length and chunk hashes
+ */
+public class ChunkStore {
+    private static final int MANIFEST_MAGIC = 0x48434d46; //"HCMF"
+    private static final int HASH_SIZE = 32;
+    private static final int MIN_CHUNK = 2 << 10;
+    private static final int MAX_CHUNK = 64 << 10;
+    //a cut after about every 8 KB
+    private static final long CUT_MASK = ((1L << 13) - 1) << (64 - 13);
+    private static final long[] GEAR = new long[256];
+    private File dir;
+    private File pack;
+    private File index;
+    private File manifests;
+    private EncodeOptions options;
+    private CodeTable table;
+    private Map<ByteBuffer, Chunk> chunks;
+
+    static {
+        //fixed, so every store cuts the same bytes in the same places
+        Random r = new Random(0x47454152);
+        for(int i = 0; i < GEAR.length; i++){
+            GEAR[i] = r.nextLong();
+        }
+    }
+
+    /**
+     * Where a chunk sits in the pack
+     */
+    private static class Chunk {
+        private long offset;
+        private int codedSize;
+        private int size;
+    }
+
+    /**
+     * What storing a file came to
+     */
+    public static class Manifest {
+        private String name;
+        private long length;
+        private int chunkCount;
+        private int newChunks;
+        private long newBytes;
+        private long codedBytes;
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        /**
+         * @return the number of chunks that were not in the store yet
+         */
+        public int getNewChunks() {
+            return newChunks;
+        }
+
+        /**
+         * @return the bytes of the file that were not in the store yet
+         */
+        public long getNewBytes() {
+            return newBytes;
+        }
+
+        /**
+         * @return the bytes added to the pack for the new chunks
+         */
+        public long getCodedBytes() {
+            return codedBytes;
+        }
+    }
+
+    /**
+     * Opens a store, or makes an empty one if the directory has none
+     * @param directory the directory of the store
+     * @param opts the options new chunks are coded with. If they carry
+     *             no shared table, one is built from the first file
+     *             stored and kept with the store.
+     * @throws IOException if the store can not be read
+     */
+    public ChunkStore(File directory, EncodeOptions opts) throws IOException {
+        dir = directory;
+        pack = new File(dir, "pack");
+        index = new File(dir, "index");
+        manifests = new File(dir, "manifests");
+        options = new EncodeOptions(opts);
+        manifests.mkdirs();
+        pack.createNewFile();
+        chunks = new HashMap<>();
+        File tableFile = new File(dir, "table");
+        if(options.getSharedTable() != null){
+            table = options.getSharedTable();
+        }
+        else if(tableFile.exists()){
+            try(InputStream tableIn = new FileInputStream(tableFile)){
+                table = CodeTable.readTable(tableIn);
+            }
+        }
+        if(index.exists()){
+            readIndex();
+        }
+    }
+
+    /**
+     * Loads the index. A last record cut short by a crash is cut off,
+     * so records added later line up again.
+     * @throws IOException
+     */
+    private void readIndex() throws IOException {
+        int recordSize = HASH_SIZE + 16;
+        long whole = index.length() - index.length() % recordSize;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+        try{
+            for(long pos = 0; pos < whole; pos += recordSize){
+                //for every chunk ever stored
+                byte[] hash = new byte[HASH_SIZE];
+                in.readFully(hash);
+                Chunk c = new Chunk();
+                c.offset = in.readLong();
+                c.codedSize = in.readInt();
+                c.size = in.readInt();
+                chunks.put(ByteBuffer.wrap(hash), c);
+            }
+        }
+        finally{
+            in.close();
+        }
+        if(whole < index.length()){
+            RandomAccessFile raf = new RandomAccessFile(index, "rw");
+            try{
+                raf.setLength(whole);
+            }
+            finally{
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Stores a file under a name, replacing any file stored under it.
+     * The new chunks are forced to disk before the index records that
+     * point at them are written, and those before the manifest.
+     * @param name the name to store it under, without path separators
+     * @param file the file to store
+     * @return what storing it came to
+     * @throws IOException
+     */
+    public synchronized Manifest put(String name, File file) throws IOException {
+        File manifestFile = manifestFile(name);
+        if(table == null && file.length() > 0){
+            //first file stored, every later chunk uses its table
+            CodeTable first = SymbolCounts.of(file, options.getSymbolWidth()).toTable();
+            ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+            first.writeTable(tableBytes);
+            try(FileOutputStream tableOut = new FileOutputStream(new File(dir, "table"))){
+                tableBytes.writeTo(tableOut);
+                tableOut.getChannel().force(true);
+            }
+            table = first;
+        }
+        EncodeOptions chunkOpts = new EncodeOptions(options).setSharedTable(table).setAppend(false, false);
+        Manifest m = new Manifest();
+        m.name = name;
+        m.length = file.length();
+        List<byte[]> hashes = new ArrayList<>();
+        MessageDigest sha = digest();
+        ByteArrayOutputStream coded = new ByteArrayOutputStream();
+        long packEnd = pack.length();
+        //chunks new to the store, indexed once they are safely in the pack
+        Map<ByteBuffer, Chunk> added = new HashMap<>();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(records);
+        FileOutputStream packFile = new FileOutputStream(pack, true);
+        OutputStream packOut = new BufferedOutputStream(packFile);
+        InputStream in = new FileInputStream(file);
+        try{
+            byte[] buffer = new byte[16 * MAX_CHUNK];
+            int start = 0;
+            int filled = 0;
+            boolean eof = false;
+            while(true){
+                if(filled - start < MAX_CHUNK && !eof){
+                    //keep at least one whole chunk ahead
+                    System.arraycopy(buffer, start, buffer, 0, filled - start);
+                    filled -= start;
+                    start = 0;
+                    int read = in.readNBytes(buffer, filled, buffer.length - filled);
+                    eof = read < buffer.length - filled;
+                    filled += read;
+                }
+                if(start == filled){
+                    break;
+                }
+                int size = cut(buffer, start, filled - start);
+                byte[] hash = sha.digest(Arrays.copyOfRange(buffer, start, start + size));
+                hashes.add(hash);
+                ByteBuffer key = ByteBuffer.wrap(hash);
+                if(!chunks.containsKey(key) && !added.containsKey(key)){
+                    //new chunk, code it onto the end of the pack
+                    coded.reset();
+                    HuffmanEncoder encoder = new HuffmanEncoder(Arrays.copyOfRange(buffer, start, start + size), coded, chunkOpts);
+                    if(encoder.getFailure() != null){
+                        //nothing of the chunk goes in the pack or the index
+                        throw encoder.getFailure();
+                    }
+                    coded.writeTo(packOut);
+                    Chunk c = new Chunk();
+                    c.offset = packEnd;
+                    c.codedSize = coded.size();
+                    c.size = size;
+                    packEnd += c.codedSize;
+                    added.put(key, c);
+                    indexOut.write(hash);
+                    indexOut.writeLong(c.offset);
+                    indexOut.writeInt(c.codedSize);
+                    indexOut.writeInt(c.size);
+                    m.newChunks++;
+                    m.newBytes += size;
+                    m.codedBytes += c.codedSize;
+                }
+                start += size;
+            }
+            packOut.flush();
+            //chunks reach the disk before the index points at them
+            packFile.getChannel().force(true);
+        }
+        finally{
+            in.close();
+            packOut.close();
+        }
+        if(records.size() > 0){
+            try(FileOutputStream indexFile = new FileOutputStream(index, true)){
+                records.writeTo(indexFile);
+                indexFile.getChannel().force(true);
+            }
+        }
+        chunks.putAll(added);
+        m.chunkCount = hashes.size();
+
+        DataOutputStream manifestOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifestFile)));
+        try{
+            manifestOut.writeInt(MANIFEST_MAGIC);
+            manifestOut.writeLong(m.length);
+            manifestOut.writeInt(hashes.size());
+            for(byte[] hash : hashes){
+                manifestOut.write(hash);
+            }
+        }
+        finally{
+            manifestOut.close();
+        }
+        CodecMetrics.add("chunkstore.chunks", m.chunkCount);
+        CodecMetrics.add("chunkstore.chunks.new", m.newChunks);
+        return m;
+    }
+
+    /**
+     * Finds where the next chunk ends with a gear hash of the bytes
+     * before each point, so the same bytes cut in the same place
+     * wherever they are in a file. Chunks are at least MIN_CHUNK and at
+     * most MAX_CHUNK bytes long.
+     * @param buffer the bytes
+     * @param offset where the chunk starts
+     * @param available the bytes there are from offset on, at least
+     *                  MAX_CHUNK unless the file ends sooner
+     * @return the length of the chunk
+     */
+    static int cut(byte[] buffer, int offset, int available) {
+        if(available <= MIN_CHUNK){
+            return available;
+        }
+        int end = Math.min(available, MAX_CHUNK);
+        long hash = 0;
+        for(int i = MIN_CHUNK; i < end; i++){
+            //the high bits hang on the last 64 bytes
+            hash = (hash << 1) + GEAR[buffer[offset + i] & 0xFF];
+            if((hash & CUT_MASK) == 0){
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Writes a stored file out again
+     * @param name the name it was stored under
+     * @param to the file to write it to
+     * @throws IOException if there is no such file or a chunk is damaged
+     */
+    public synchronized void get(String name, File to) throws IOException {
+        File manifestFile = manifestFile(name);
+        if(!manifestFile.exists()){
+            throw new IOException("No file stored as " + name + "!");
+        }
+        DataInputStream manifest = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+        RandomAccessFile packIn = new RandomAccessFile(pack, "r");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(to));
+        try{
+            if(manifest.readInt() != MANIFEST_MAGIC){
+                throw new IOException(manifestFile + " is not a manifest!");
+            }
+            long length = manifest.readLong();
+            int count = manifest.readInt();
+            long written = 0;
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            byte[] hash = new byte[HASH_SIZE];
+            for(int i = 0; i < count; i++){
+                //for every chunk, in order
+                manifest.readFully(hash);
+                Chunk c = chunks.get(ByteBuffer.wrap(hash));
+                if(c == null){
+                    throw new IOException("Chunk " + i + " of " + name + " is not in the store!");
+                }
+                byte[] coded = new byte[c.codedSize];
+                packIn.seek(c.offset);
+                packIn.readFully(coded);
+                decoded.reset();
+                HuffmanDecoder decoder = new HuffmanDecoder(coded, decoded, table);
+                if(decoder.getFailure() != null){
+                    throw decoder.getFailure();
+                }
+                if(decoded.size() != c.size){
+                    throw new IOException("Chunk " + i + " of " + name + " is damaged!");
+                }
+                decoded.writeTo(out);
+                written += c.size;
+            }
+            if(written != length){
+                throw new IOException(name + " came out " + written + " bytes long, not " + length + "!");
+            }
+        }
+        finally{
+            manifest.close();
+            packIn.close();
+            out.close();
+        }
+    }
+
+    /**
+     * @return the names of the files stored
+     */
+    public synchronized List<String> list() {
+        List<String> names = new ArrayList<>();
+        String[] files = manifests.list();
+        if(files != null){
+            names.addAll(Arrays.asList(files));
+        }
+        names.sort(null);
+        return names;
+    }
+
+    /**
+     * @return the number of different chunks in the store
+     */
+    public synchronized int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * @return the size of the pack the chunks are coded into
+     */
+    public long getPackSize() {
+        return pack.length();
+    }
+
+    private File manifestFile(String name) {
+        if(name.isEmpty() || name.contains("/") || name.contains("\\") || name.equals(".") || name.equals("..")){
+            throw new IllegalArgumentException("Name " + name + " can not be used for a stored file!");
+        }
+        return new File(manifests, name);
+    }
+
+    private static MessageDigest digest() {
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e){
+            //every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,503 @@
+import datastructs.PriorityQueue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class CodeTable {
+    private static final long MAX_WEIGHT = 1L << 32;
+    //longest code a table can hold, codes are kept in a long
+    static final int MAX_DEPTH = 64;
+    private LetterData root;
+    private long[] codes;
+    private byte[] lengths;
+    private int width;
+    private int escape;
+    private volatile PairTable pairs;
+
+    /**
+     * The codes of every byte pair, first byte high, put together.
+     * A pair whose codes are longer than 32 bits together, or that
+     * has to be escaped, has a length of -1.
+     */
+    private static class PairTable {
+        private int[] codes = new int[1 << 16];
+        private byte[] lengths = new byte[1 << 16];
+    }
+
+    /**
+     * Builds a Huffman code for every symbol with a non zero count
+     * @param counts the histogram of the symbols, indexed by symbol
+     * @param symbolWidth the number of bytes per symbol
+     */
+    public CodeTable(long[] counts, int symbolWidth) {
+        this(counts, symbolWidth, false);
+    }
+
+    /**
+     * Builds a Huffman code for every symbol with a non zero count.
+     * If escapes are wanted, one symbol that did not occur is given a
+     * code as well; symbols missing from the table are written as that
+     * escape code followed by the raw symbol.
+     * @param counts the histogram of the symbols, indexed by symbol
+     * @param symbolWidth the number of bytes per symbol
+     * @param escapes whether to reserve an escape code
+     */
+    public CodeTable(long[] counts, int symbolWidth, boolean escapes) {
+        width = symbolWidth;
+        escape = -1;
+        long[] weights = counts.clone();
+        if(escapes){
+            for(int i = 0; i < weights.length && escape < 0; i++){
+                //first symbol that did not occur stands in for the missing ones
+                if(weights[i] == 0){
+                    escape = i;
+                    weights[i] = 1;
+                }
+            }
+        }
+        CodecMetrics.Phase phase = CodecMetrics.begin("createTree");
+        rescale(weights);
+        root = createTree(weights);
+        phase.end(0);
+
+        phase = CodecMetrics.begin("getEncodings");
+        codes = new long[counts.length];
+        lengths = new byte[counts.length];
+        for(int i = 0; i < lengths.length; i++){
+            //no code until found in the tree
+            lengths[i] = -1;
+        }
+        if(root != null){
+            getEncodings(root, 0, 0);
+        }
+        phase.end(0);
+    }
+
+    /**
+     * Builds a table around a tree that was read back from a file
+     * @param tree the root of the tree
+     * @param symbolWidth the number of bytes per symbol
+     * @param escapeSymbol the symbol standing for escapes, -1 if none
+     */
+    public CodeTable(LetterData tree, int symbolWidth, int escapeSymbol) {
+        width = symbolWidth;
+        escape = escapeSymbol;
+        root = tree;
+        codes = new long[1 << (8 * width)];
+        lengths = new byte[codes.length];
+        for(int i = 0; i < lengths.length; i++){
+            //no code until found in the tree
+            lengths[i] = -1;
+        }
+        getEncodings(root, 0, 0);
+    }
+
+    /**
+     * Recursively builds a tree written by writeTree back up
+     * @param input the buffer the tree is read from
+     * @param symbolWidth the number of bytes per symbol
+     * @return the root of the tree
+     * @throws IOException if the tree is deeper than MAX_DEPTH or has
+     *                     more leaves than there are symbols
+     */
+    public static LetterData readTree(BitBuffer input, int symbolWidth) throws IOException{
+        int[] leaves = {0};
+        return readTree(input, symbolWidth, 0, leaves);
+    }
+
+    private static LetterData readTree(BitBuffer input, int symbolWidth, int depth, int[] leaves) throws IOException{
+        if(depth > MAX_DEPTH){
+            throw new IOException("Tree is deeper than " + MAX_DEPTH + " levels!");
+        }
+        LetterData curr;
+        boolean out = input.readBit();
+        if(out){
+            if(++leaves[0] > 1 << (8 * symbolWidth)){
+                throw new IOException("Tree has more leaves than there are symbols!");
+            }
+            //base case: leaf node to be made, letter of node is next symbol
+            char letter = 0;
+            for(int i = 0; i < symbolWidth; i++){
+                //for every byte of the symbol, big endian
+                letter = (char) ((letter << 8) | (input.readByte() & 0xFF));
+            }
+            curr = new LetterData(letter + "", -1);
+        }
+        else{
+            //recursion, parent node inserted
+            curr = new LetterData();
+            curr.left = readTree(input, symbolWidth, depth + 1, leaves);
+            curr.right = readTree(input, symbolWidth, depth + 1, leaves);
+        }
+        return curr;
+    }
+
+    /**
+     * Halves the weights until their total fits under MAX_WEIGHT.
+     * Counts of huge files would otherwise make for very deep trees;
+     * symbols that occur keep a weight of at least 1.
+     * @param weights the weights to be scaled in place
+     */
+    private static void rescale(long[] weights) {
+        long total = 0;
+        for (long count : weights) {
+            total += count;
+        }
+        while (total > MAX_WEIGHT) {
+            //halve every count, rounding up so no symbol is lost
+            total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = (weights[i] + 1) >>> 1;
+                total += weights[i];
+            }
+        }
+    }
+
+    /**
+     * Uses the Huffman algorithm to create a huffman tree
+     * from the weights
+     * @param weights the weight of every symbol
+     * @return the root of the tree, null if no symbol has a weight
+     */
+    private static LetterData createTree(long[] weights) {
+        PriorityQueue<LetterData> queue = new PriorityQueue<>();
+        for (int i = 0; i < weights.length; i++) {
+            // for every symbol that occurs
+            if(weights[i] > 0){
+                queue.pushIn(new LetterData(String.valueOf((char) i), weights[i]));
+            }
+        }
+        if(queue.isEmpty()){
+            return null;
+        }
+        while (queue.size() >= 2) {
+            // until one letter data left
+            LetterData firstOut = queue.pop();
+            LetterData secondOut = queue.pop();
+            LetterData combined = new LetterData(firstOut, firstOut.c + secondOut.c,
+                    firstOut.frequency + secondOut.frequency, secondOut);
+            queue.pushIn(combined);
+        }
+        // tree is complete, letter data left is root
+        return queue.pop();
+    }
+
+    /**
+     * Recursively builds the code of every leaf, the path to a leaf
+     * is kept as the low bits of code
+     * @param curr the current node of the tree
+     * @param code the steps taken to get to curr
+     * @param depth the number of steps taken to get to curr
+     */
+    private void getEncodings(LetterData curr, long code, int depth){
+        if(curr.left == null && curr.right == null){
+            //base case: leaf node
+            codes[curr.c.charAt(0)] = code;
+            lengths[curr.c.charAt(0)] = (byte) depth;
+        }
+        else{
+            //0 to go left, 1 to go right
+            getEncodings(curr.left, code << 1, depth + 1);
+            getEncodings(curr.right, (code << 1) | 1, depth + 1);
+        }
+    }
+
+    /**
+     * Writes a symbol to the buffer, escaping it if it has no code.
+     * The escape symbol itself is escaped too, its leaf is taken.
+     * @param symbol the symbol to be written
+     * @param buffer the output buffer
+     * @throws IOException if the symbol has no code and there is no escape
+     */
+    public void writeCode(int symbol, BitBuffer buffer) throws IOException{
+        if(lengths[symbol] >= 0 && symbol != escape){
+            //symbol is in the table
+            buffer.writeBits(codes[symbol], lengths[symbol]);
+        }
+        else if(escape < 0){
+            throw new IOException("Symbol " + symbol + " has no code in the table and it has no escape!");
+        }
+        else{
+            //escape code followed by the raw symbol
+            buffer.writeBits(codes[escape], lengths[escape]);
+            writeSymbol(symbol, buffer);
+        }
+    }
+
+    /**
+     * Writes a block of symbols to the buffer, as writeCode would one at
+     * a time, and counts the bits written
+     * @param block the symbols, width bytes each, big endian
+     * @param offset the first byte of the first symbol
+     * @param symbols the number of symbols to write
+     * @param buffer the output buffer
+     * @return the number of bits written
+     * @throws IOException if a symbol has no code and there is no escape
+     */
+    public long writeCodes(byte[] block, int offset, int symbols, BitBuffer buffer) throws IOException{
+        long bits = 0;
+        int end = offset + symbols * width;
+        for(int i = offset; i < end; i += width){
+            //for every symbol of the block
+            int symbol = block[i] & 0xFF;
+            if(width == 2){
+                symbol = (symbol << 8) | (block[i + 1] & 0xFF);
+            }
+            int length = lengths[symbol];
+            if(length >= 0 && symbol != escape){
+                buffer.writeBits(codes[symbol], length);
+                bits += length;
+            }
+            else{
+                writeCode(symbol, buffer);
+                bits += codeLength(symbol);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Writes a block of 8 bit symbols two at a time, one write for both
+     * codes where they fit in 32 bits, and counts the bits written. The
+     * pair table is built by the first call and kept with this table.
+     * Blocks of 16 bit symbols are written as writeCodes would.
+     * @param block the symbols
+     * @param offset the first symbol
+     * @param symbols the number of symbols to write
+     * @param buffer the output buffer
+     * @return the number of bits written
+     * @throws IOException if a symbol has no code and there is no escape
+     */
+    public long writePairs(byte[] block, int offset, int symbols, BitBuffer buffer) throws IOException{
+        if(width != 1){
+            return writeCodes(block, offset, symbols, buffer);
+        }
+        PairTable table = pairTable();
+        long bits = 0;
+        int end = offset + symbols;
+        int i = offset;
+        for(; i + 1 < end; i += 2){
+            //for every pair of the block
+            int pair = ((block[i] & 0xFF) << 8) | (block[i + 1] & 0xFF);
+            int length = table.lengths[pair];
+            if(length >= 0){
+                buffer.writeBits(table.codes[pair], length);
+                bits += length;
+            }
+            else{
+                //too long or escaped, one symbol at a time
+                bits += writeCodes(block, i, 2, buffer);
+            }
+        }
+        if(i < end){
+            //odd symbol left over
+            bits += writeCodes(block, i, 1, buffer);
+        }
+        return bits;
+    }
+
+    /**
+     * @return the pair table, built on first use
+     */
+    private PairTable pairTable(){
+        PairTable table = pairs;
+        if(table == null){
+            //two threads may both build it, either result is the same
+            table = new PairTable();
+            for(int first = 0; first < 256; first++){
+                int firstLength = first == escape ? -1 : lengths[first];
+                for(int second = 0; second < 256; second++){
+                    //for every pair that can be coded as one
+                    int pair = (first << 8) | second;
+                    int secondLength = second == escape ? -1 : lengths[second];
+                    if(firstLength < 0 || secondLength < 0 || firstLength + secondLength > 32){
+                        table.lengths[pair] = -1;
+                    }
+                    else{
+                        table.codes[pair] = (int) ((codes[first] << secondLength) | codes[second]);
+                        table.lengths[pair] = (byte) (firstLength + secondLength);
+                    }
+                }
+            }
+            pairs = table;
+        }
+        return table;
+    }
+
+    /**
+     * Recursively writes the tree to the given buffer
+     * @param buffer the output buffer
+     */
+    public void writeTree(BitBuffer buffer){
+        writeTree(root, buffer);
+    }
+
+    private void writeTree(LetterData curr, BitBuffer buffer){
+        if(curr == null){
+            //base case: don't write anything
+        }
+        else{
+            //recursive
+            if(curr.left != null || curr.right != null){
+                //this is a parent node, write 0
+                buffer.writeBit(false);
+            }
+            else{
+                //leaf node
+                buffer.writeBit(true);
+                //write symbol
+                writeSymbol(curr.c.charAt(0), buffer);
+            }
+            writeTree(curr.left, buffer);
+            writeTree(curr.right, buffer);
+        }
+    }
+
+    /**
+     * Writes the whole table: its width, its escape symbol if it has
+     * one, and its tree
+     * @param out the stream to write to, closed once done
+     */
+    public void writeTable(OutputStream out){
+        BitBuffer buffer = new BitBuffer(out);
+        try{
+            buffer.writeByte((byte) width);
+            buffer.writeBit(escape >= 0);
+            if(escape >= 0){
+                writeSymbol(escape, buffer);
+            }
+            writeTree(buffer);
+        }
+        finally{
+            buffer.close();
+        }
+    }
+
+    /**
+     * Reads a table written by writeTable
+     * @param in the stream to read from, closed once done
+     * @return the table
+     * @throws IOException if its width or its tree is malformed
+     */
+    public static CodeTable readTable(InputStream in) throws IOException{
+        BitBuffer buffer = new BitBuffer(in);
+        try{
+            int width = buffer.readByte() & 0xFF;
+            if(width != 1 && width != 2){
+                throw new IOException("Table has a symbol width of " + width + "!");
+            }
+            int escape = -1;
+            if(buffer.readBit()){
+                escape = 0;
+                for(int i = 0; i < width; i++){
+                    //for every byte of the symbol
+                    escape = (escape << 8) | (buffer.readByte() & 0xFF);
+                }
+            }
+            LetterData tree = readTree(buffer, width);
+            return new CodeTable(tree, width, escape);
+        }
+        finally{
+            buffer.close();
+        }
+    }
+
+    /**
+     * Writes a symbol as width bytes, big endian
+     * @param symbol the symbol to be written
+     * @param buffer the output buffer
+     */
+    public void writeSymbol(int symbol, BitBuffer buffer){
+        for(int i = width - 1; i >= 0; i--){
+            //for every byte of the symbol
+            buffer.writeByte((byte) (symbol >> (8 * i)));
+        }
+    }
+
+    /**
+     * @return the number of bits writeTree will write
+     */
+    public long treeBits(){
+        return treeBits(root);
+    }
+
+    private long treeBits(LetterData curr){
+        if(curr == null){
+            return 0;
+        }
+        else if(curr.left == null && curr.right == null){
+            //flag bit and the symbol
+            return 1 + 8 * width;
+        }
+        return 1 + treeBits(curr.left) + treeBits(curr.right);
+    }
+
+    /**
+     * Counts the bits needed to code a histogram with this table,
+     * without the tree
+     * @param counts the histogram of the symbols to be coded
+     * @return the number of code bits
+     */
+    public long encodedBits(long[] counts){
+        long bits = 0;
+        for(int i = 0; i < counts.length; i++){
+            //for every symbol that occurs
+            if(counts[i] > 0){
+                bits += counts[i] * codeLength(i);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @param symbol the symbol to look up
+     * @return the number of bits written for the symbol, escape included
+     */
+    public int codeLength(int symbol){
+        if(lengths[symbol] >= 0 && symbol != escape){
+            return lengths[symbol];
+        }
+        if(escape < 0){
+            //can not be coded at all
+            throw new IllegalArgumentException("Symbol " + symbol + " has no code!");
+        }
+        return lengths[escape] + 8 * width;
+    }
+
+    /**
+     * @param symbol a symbol with a code of its own
+     * @return its code, in the low codeLength(symbol) bits
+     */
+    public long code(int symbol){
+        return codes[symbol];
+    }
+
+    /**
+     * @param symbol the symbol to look up
+     * @return whether the symbol has a code of its own
+     */
+    public boolean hasCode(int symbol){
+        return lengths[symbol] >= 0;
+    }
+
+    /**
+     * @return the root of the tree
+     */
+    public LetterData getRoot(){
+        return root;
+    }
+
+    /**
+     * @return the symbol standing for escapes, -1 if there are none
+     */
+    public int getEscape(){
+        return escape;
+    }
+
+    /**
+     * @return the number of bytes per symbol
+     */
+    public int getWidth(){
+        return width;
+    }
+}
@@ -0,0 +1,22 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one phase of coding or decoding
+ */
+@Name("huffman.Phase")
+@Label("Huffman Phase")
+@Category("Huffman")
+@Description("One phase of a Huffman encode or decode")
+public class CodecEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,180 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for the encoders and decoders, shared by the
+ * whole JVM. Every phase timed here is also a Flight Recorder event.
+ */
+public class CodecMetrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private CodecMetrics() {
+    }
+
+    /**
+     * A histogram of non negative values in power of two buckets,
+     * safe to record into from any thread
+     */
+    public static class Histogram {
+        private AtomicLongArray buckets;
+        private LongAdder count;
+        private LongAdder sum;
+        private LongAccumulator max;
+
+        private Histogram() {
+            buckets = new AtomicLongArray(64);
+            count = new LongAdder();
+            sum = new LongAdder();
+            max = new LongAccumulator(Math::max, 0);
+        }
+
+        /**
+         * Records one value
+         * @param value the value, negative values count as 0
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            //bucket i holds the values below 2^i that need i bits
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * @param fraction which percentile, 0.99 -> p99
+         * @return the upper bound of the bucket holding that percentile,
+         * capped at the largest value seen
+         */
+        public long percentile(double fraction) {
+            long target = (long) Math.ceil(count.sum() * fraction);
+            long seen = 0;
+            for(int i = 0; i < 64; i++){
+                //until enough values have been passed
+                seen += buckets.get(i);
+                if(seen >= target && seen > 0){
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+
+    /**
+     * A phase being timed, ended by end()
+     */
+    public static class Phase {
+        private String name;
+        private long start;
+        private CodecEvent event;
+
+        private Phase(String phase) {
+            name = phase;
+            event = new CodecEvent();
+            event.begin();
+            start = System.nanoTime();
+        }
+
+        /**
+         * Ends the phase, recording its latency and committing its event
+         * @param bytes the number of bytes the phase handled
+         */
+        public void end(long bytes) {
+            histogram("phase." + name + ".nanos").record(System.nanoTime() - start);
+            event.phase = name;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing a phase
+     * @param name the name of the phase
+     * @return the phase, to be ended once it is done
+     */
+    public static Phase begin(String name) {
+        return new Phase(name);
+    }
+
+    /**
+     * Adds to a counter, creating it at 0 if needed
+     * @param name the name of the counter
+     * @param amount how much to add
+     */
+    public static void add(String name, long amount) {
+        counter(name).add(amount);
+    }
+
+    /**
+     * Looks up a counter once, for hot paths that keep hold of it
+     * @param name the name of the counter
+     * @return the counter, created at 0 if needed
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * @param name the name of the histogram
+     * @return the histogram, created empty if needed
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * @return the bytes allocated by the calling thread so far, or -1
+     * if the JVM does not track it
+     */
+    public static long allocatedBytes() {
+        if(threads instanceof com.sun.management.ThreadMXBean){
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Hands every counter and histogram to an exporter, in name order
+     * @param exporter where to send the metrics
+     */
+    public static void export(MetricsExporter exporter) {
+        for(Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()){
+            exporter.counter(e.getKey(), e.getValue().sum());
+        }
+        for(Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()){
+            exporter.histogram(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Forgets every metric recorded so far
+     */
+    public static void reset() {
+        for(LongAdder counter : counters.values()){
+            //counters may be held by hot paths, so they are zeroed rather than dropped
+            counter.reset();
+        }
+        histograms.clear();
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+public class CompressionEstimate {
+    private static final int STRIDE_BLOCK = 1 << 16;
+    //below this many bytes the four histograms cost more than they save
+    private static final int SPLIT_MIN = 4096;
+    //frame header, alphabet header, length and frame trailer
+    private static final int FILE_HEADER_BITS = 40 + 16 + 64 + 64;
+    //flags and count, and the checksum after the codes
+    private static final int REGION_HEADER_BITS = 72 + 32;
+    private long codedBits;
+    private long headerBits;
+    private double entropyBits;
+    private boolean exact;
+
+    /**
+     * Works out the size HuffmanEncoder would write for a histogram,
+     * without coding anything. The histogram should include the padded
+     * last symbol, as the one from HuffmanEncoder.getHistogram() does.
+     * @param counts the histogram of the symbols, indexed by symbol
+     * @param symbolWidth the number of bytes per symbol
+     */
+    public CompressionEstimate(long[] counts, int symbolWidth) {
+        CodeTable table = new CodeTable(counts, symbolWidth);
+        codedBits = table.encodedBits(counts);
+        headerBits = FILE_HEADER_BITS + REGION_HEADER_BITS + table.treeBits();
+        //region is padded to a whole byte
+        headerBits += (8 - (headerBits + codedBits) % 8) % 8;
+        entropyBits = entropyBits(counts, null);
+        exact = true;
+    }
+
+    /**
+     * Estimates the size HuffmanEncoder would write for a file by only
+     * counting part of it. The tree is built from the sample and the
+     * coded size is scaled up to the length of the whole file.
+     * @param f the file to estimate
+     * @param symbolWidth the number of bytes per symbol
+     * @param sampleBytes the number of bytes to count, 0 for the whole file
+     * @param spread false -> count the front of the file,
+     *               true -> count blocks spread across the file
+     * @throws IOException
+     */
+    public CompressionEstimate(File f, int symbolWidth, long sampleBytes, boolean spread) throws IOException {
+        long[] counts = new long[1 << (8 * symbolWidth)];
+        long length = f.length();
+        long sampled = length;
+        if(sampleBytes <= 0 || sampleBytes >= length){
+            //count everything
+            counts = count(f, symbolWidth);
+        }
+        else{
+            if(spread){
+                sampled = sample(f, symbolWidth, sampleBytes, counts);
+            }
+            else{
+                InputStream input = new MappedInputStream(f);
+                sampled = sampleBytes - sampleBytes % symbolWidth;
+                countInto(new ByteArrayInputStream(input.readNBytes((int) Math.min(sampled, Integer.MAX_VALUE - 8))), symbolWidth, counts);
+                input.close();
+            }
+        }
+
+        CodeTable table = new CodeTable(counts, symbolWidth);
+        double scale = sampled == 0 ? 1 : (double) length / sampled;
+        codedBits = (long) Math.ceil(table.encodedBits(counts) * scale);
+        headerBits = FILE_HEADER_BITS + REGION_HEADER_BITS + table.treeBits();
+        headerBits += (8 - (headerBits + codedBits) % 8) % 8;
+        entropyBits = entropyBits(counts, null) * scale;
+        exact = sampled == length;
+    }
+
+    /**
+     * Counts a whole file into the histogram HuffmanEncoder would count
+     * for it, with the padded last symbol
+     * @param f the file to count
+     * @param symbolWidth the number of bytes per symbol
+     * @return the histogram, indexed by symbol
+     * @throws IOException
+     */
+    public static long[] count(File f, int symbolWidth) throws IOException {
+        long[] counts = new long[1 << (8 * symbolWidth)];
+        countInto(new MappedInputStream(f), symbolWidth, counts);
+        if(f.length() % symbolWidth != 0){
+            //bytes left over at the end are padded into one symbol
+            counts[lastSymbol(f, symbolWidth)]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Reads the symbol the encoder makes of the last, partial symbol
+     * of a file by padding it with zero bytes
+     * @param f the file to read
+     * @param symbolWidth the number of bytes per symbol
+     * @return the padded symbol
+     * @throws IOException
+     */
+    private static int lastSymbol(File f, int symbolWidth) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        long length = file.length();
+        int extra = (int) (length % symbolWidth);
+        file.seek(length - extra);
+        int symbol = 0;
+        for(int i = 0; i < symbolWidth; i++){
+            //for every byte, zero once the file ends
+            symbol = (symbol << 8) | (i < extra ? file.read() : 0);
+        }
+        file.close();
+        return symbol;
+    }
+
+    /**
+     * Counts whole symbols of the input into a histogram, a partial
+     * symbol at the end is left out
+     * @param input the input to be counted
+     * @param symbolWidth the number of bytes per symbol
+     * @param counts the histogram to count into
+     * @throws IOException
+     */
+    static void countInto(InputStream input, int symbolWidth, long[] counts) throws IOException {
+        byte[] buffer = new byte[STRIDE_BLOCK];
+        int kept = 0;
+        int read = input.read(buffer, 0, buffer.length);
+        while(read != -1){
+            //until end of input
+            kept += read;
+            int whole = kept - kept % symbolWidth;
+            countSymbols(buffer, 0, whole, symbolWidth, counts);
+            //keep the partial symbol at the front for the next read
+            System.arraycopy(buffer, whole, buffer, 0, kept - whole);
+            kept -= whole;
+            read = input.read(buffer, kept, buffer.length - kept);
+        }
+        input.close();
+    }
+
+    /**
+     * Counts the symbols of a block into a histogram. Bytes are counted
+     * into four histograms in turn and added up at the end, so runs of
+     * one value do not wait on the same counter; short blocks and wider
+     * symbols are counted directly.
+     * @param block the bytes to count
+     * @param offset the first byte to count
+     * @param length the number of bytes, a whole number of symbols
+     * @param symbolWidth the number of bytes per symbol
+     * @param counts the histogram to count into
+     */
+    public static void countSymbols(byte[] block, int offset, int length, int symbolWidth, long[] counts) {
+        int end = offset + length;
+        if(symbolWidth == 1 && length >= SPLIT_MIN){
+            int[] split = new int[4 * 256];
+            int i = offset;
+            for(; i + 4 <= end; i += 4){
+                //one byte into each histogram
+                split[block[i] & 0xFF]++;
+                split[256 + (block[i + 1] & 0xFF)]++;
+                split[512 + (block[i + 2] & 0xFF)]++;
+                split[768 + (block[i + 3] & 0xFF)]++;
+            }
+            for(; i < end; i++){
+                split[block[i] & 0xFF]++;
+            }
+            for(int b = 0; b < 256; b++){
+                counts[b] += (long) split[b] + split[256 + b] + split[512 + b] + split[768 + b];
+            }
+            return;
+        }
+        for(int i = offset; i < end; i += symbolWidth){
+            //for every whole symbol
+            int symbol = 0;
+            for(int j = 0; j < symbolWidth; j++){
+                symbol = (symbol << 8) | (block[i + j] & 0xFF);
+            }
+            counts[symbol]++;
+        }
+    }
+
+    /**
+     * Counts evenly spaced blocks of a file into a histogram
+     * @param f the file to sample
+     * @param symbolWidth the number of bytes per symbol
+     * @param sampleBytes about how many bytes to count
+     * @param counts the histogram to count into
+     * @return the number of bytes counted
+     * @throws IOException
+     */
+    public static long sample(File f, int symbolWidth, long sampleBytes, long[] counts) throws IOException {
+        long length = f.length();
+        int blockSize = (int) Math.min(STRIDE_BLOCK, sampleBytes);
+        blockSize -= blockSize % symbolWidth;
+        if(blockSize == 0 || length == 0){
+            //nothing to sample
+            return 0;
+        }
+        long blocks = (sampleBytes + blockSize - 1) / blockSize;
+        long stride = Math.max(blockSize, length / blocks);
+        long sampled = 0;
+        byte[] block = new byte[blockSize];
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        for(long pos = 0; pos < length; pos += stride){
+            //for every sampled block, starting on a symbol boundary
+            file.seek(pos - pos % symbolWidth);
+            int read = file.read(block, 0, blockSize);
+            if(read > 0){
+                read -= read % symbolWidth;
+                countInto(new ByteArrayInputStream(block, 0, read), symbolWidth, counts);
+                sampled += read;
+            }
+        }
+        file.close();
+        return sampled;
+    }
+
+    /**
+     * Works out the entropy of a histogram, the fewest bits any code
+     * built from it could use for its symbols
+     * @param a the histogram
+     * @param b a histogram to add to a, or null
+     * @return the entropy bound in bits
+     */
+    public static double entropyBits(long[] a, long[] b) {
+        long total = 0;
+        double sum = 0;
+        for(int i = 0; i < a.length; i++){
+            //for every symbol that occurs
+            long count = b == null ? a[i] : a[i] + b[i];
+            if(count > 0){
+                total += count;
+                sum += count * Math.log(count);
+            }
+        }
+        if(total == 0){
+            return 0;
+        }
+        return (total * Math.log(total) - sum) / Math.log(2);
+    }
+
+    /**
+     * Estimates the bits a histogram codes to with a tree of its own,
+     * using the entropy of the histogram for the codes
+     * @param a the histogram
+     * @param b a histogram to add to a, or null
+     * @param width the symbol width in bytes
+     * @param scale what the codes are scaled by, for a sampled histogram
+     * @return the estimated number of bits, tree included
+     */
+    static double treeAndCodeBits(long[] a, long[] b, int width, double scale) {
+        long distinct = 0;
+        for(int i = 0; i < a.length; i++){
+            //for every symbol that occurs
+            if(a[i] > 0 || (b != null && b[i] > 0)){
+                distinct++;
+            }
+        }
+        //one bit per node of the tree and the symbol of every leaf
+        long treeBits = 2 * distinct - 1 + distinct * 8 * width;
+        return treeBits + entropyBits(a, b) * scale;
+    }
+
+    /**
+     * @return the number of bits of Huffman codes
+     */
+    public long getCodedBits() {
+        return codedBits;
+    }
+
+    /**
+     * @return the number of bits of headers, tree and padding
+     */
+    public long getHeaderBits() {
+        return headerBits;
+    }
+
+    /**
+     * @return the entropy bound on the coded bits
+     */
+    public double getEntropyBits() {
+        return entropyBits;
+    }
+
+    /**
+     * @return the whole encoded size in bytes
+     */
+    public long getTotalBytes() {
+        return (codedBits + headerBits + 7) / 8;
+    }
+
+    /**
+     * @return whether the whole input was counted, rather than a sample
+     */
+    public boolean isExact() {
+        return exact;
+    }
+}
@@ -0,0 +1,172 @@
+public class EncodeOptions {
+    private int width;
+    private long sampleSize;
+    private boolean strided;
+    private boolean adaptive;
+    private CodeTable shared;
+    private boolean append;
+    private boolean inherit;
+    private boolean pairs;
+    private boolean filtered;
+
+    /**
+     * Creates the default options: 8 bit symbols and
+     * a full counting pass over the input
+     */
+    public EncodeOptions() {
+        width = 1;
+        sampleSize = 0;
+        strided = false;
+        adaptive = false;
+    }
+
+    /**
+     * Creates a copy of the given options
+     * @param other the options to copy
+     */
+    public EncodeOptions(EncodeOptions other) {
+        width = other.width;
+        sampleSize = other.sampleSize;
+        strided = other.strided;
+        adaptive = other.adaptive;
+        shared = other.shared;
+        append = other.append;
+        inherit = other.inherit;
+        pairs = other.pairs;
+        filtered = other.filtered;
+    }
+
+    /**
+     * Sets the number of bytes per symbol
+     * @param symbolWidth 1 -> 8 bit, 2 -> 16 bit
+     * @return these options
+     */
+    public EncodeOptions setSymbolWidth(int symbolWidth) {
+        if(symbolWidth != 1 && symbolWidth != 2){
+            throw new IllegalArgumentException("Symbol width must be 1 or 2 bytes!");
+        }
+        width = symbolWidth;
+        return this;
+    }
+
+    /**
+     * Turns on the fast mode: the tree is built from a sample of
+     * the input instead of a full counting pass
+     * @param bytes the number of bytes to sample, 0 for a full pass
+     * @param spread false -> sample the front of the file,
+     *               true -> sample blocks spread across the file
+     * @return these options
+     */
+    public EncodeOptions setSample(long bytes, boolean spread) {
+        if(bytes < 0){
+            throw new IllegalArgumentException("Sample size can not be negative!");
+        }
+        sampleSize = bytes;
+        strided = spread;
+        return this;
+    }
+
+    /**
+     * Turns on block splitting: a new tree is started wherever the
+     * symbol statistics shift enough to pay for the extra tree.
+     * Ignored in the fast mode, which builds a single tree.
+     * @param split whether to split the input into regions
+     * @return these options
+     */
+    public EncodeOptions setAdaptive(boolean split) {
+        adaptive = split;
+        return this;
+    }
+
+    /**
+     * Codes with a table that is kept outside the encoded file, so no
+     * tree is written. The decoder has to be given the same table.
+     * Every symbol of the input needs a code in the table unless the
+     * table has an escape, and the table's width has to be the symbol
+     * width; the encoder fails otherwise. Sampling and splitting are
+     * ignored.
+     * @param table the shared table, null to build one per file
+     * @return these options
+     */
+    public EncodeOptions setSharedTable(CodeTable table) {
+        shared = table;
+        return this;
+    }
+
+    /**
+     * Adds the coded file as a new frame at the end of the output file
+     * instead of replacing it. A frame may inherit the table of the
+     * frame before it, in which case no tree is written; if the table
+     * is missing a symbol of the file the frame gets its own table.
+     * @param appending whether to append to the output file
+     * @param inheritTable whether to try coding with the last frame's table
+     * @return these options
+     */
+    public EncodeOptions setAppend(boolean appending, boolean inheritTable) {
+        append = appending;
+        inherit = appending && inheritTable;
+        return this;
+    }
+
+    /**
+     * Codes 8 bit symbols two at a time from a table of byte pairs,
+     * which halves the writes for short codes. The output is the same.
+     * Ignored for 16 bit symbols.
+     * @param pairCodes whether to code byte pairs
+     * @return these options
+     */
+    public EncodeOptions setPairCodes(boolean pairCodes) {
+        pairs = pairCodes;
+        return this;
+    }
+
+    /**
+     * Runs every block of the input through the PreFilter it is
+     * estimated to code smallest with, such as the differences between
+     * neighbouring values of numeric data. Blocks with different
+     * filters go in different regions. Ignored with a shared or
+     * inherited table and in the fast mode.
+     * @param filter whether to filter blocks
+     * @return these options
+     */
+    public EncodeOptions setPreFilters(boolean filter) {
+        filtered = filter;
+        return this;
+    }
+
+    public int getSymbolWidth() {
+        return width;
+    }
+
+    public long getSampleSize() {
+        return sampleSize;
+    }
+
+    public boolean isStrided() {
+        return strided;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public CodeTable getSharedTable() {
+        return shared;
+    }
+
+    public boolean isAppend() {
+        return append;
+    }
+
+    public boolean isInheritTable() {
+        return inherit;
+    }
+
+    public boolean isPairCodes() {
+        return pairs;
+    }
+
+    public boolean isPreFiltered() {
+        return filtered;
+    }
+}
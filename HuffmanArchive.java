@@ -0,0 +1,318 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * An archive of Huffman coded files. The coded entries come first, then
+ * the shared table if there is one, then a central directory with the
+ * name, offset and sizes of every entry. A fixed size trailer at the end
+ * of the file points at the directory, so a single entry can be found
+ * and decoded without reading any of the others.
+ */
+public class HuffmanArchive {
+    private static final int MAGIC = 0x48464152; //"HFAR"
+    private static final int TRAILER_SIZE = 12;
+    private File file;
+    private Map<String, Entry> entries;
+    private CodeTable shared;
+
+    /**
+     * Where an entry sits in the archive
+     */
+    public static class Entry {
+        private String name;
+        private long offset;
+        private long compressedSize;
+        private long originalSize;
+
+        private Entry(String n, long off, long compressed, long original) {
+            name = n;
+            offset = off;
+            compressedSize = compressed;
+            originalSize = original;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getOriginalSize() {
+            return originalSize;
+        }
+    }
+
+    /**
+     * Counts the bytes written through it. Closing only flushes, so the
+     * encoder of one entry can not close the whole archive.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+            count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private void finish() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Opens an archive and reads its central directory
+     * @param archive the archive to open
+     * @throws IOException if the file is not an archive
+     */
+    public HuffmanArchive(File archive) throws IOException {
+        file = archive;
+        entries = new LinkedHashMap<>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            if(raf.length() < TRAILER_SIZE + 4 || raf.readInt() != MAGIC){
+                throw new IOException(file + " is not a Huffman archive!");
+            }
+            //trailer: directory offset, then the magic number again
+            raf.seek(raf.length() - TRAILER_SIZE);
+            long directory = raf.readLong();
+            if(raf.readInt() != MAGIC){
+                throw new IOException(file + " has a damaged trailer!");
+            }
+            long dirEnd = raf.length() - TRAILER_SIZE;
+            if(directory < 4 || directory > dirEnd || dirEnd - directory > Integer.MAX_VALUE - 8){
+                throw new IOException(file + " points at a directory outside the archive!");
+            }
+            byte[] dir = new byte[(int) (dirEnd - directory)];
+            raf.seek(directory);
+            raf.readFully(dir);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(dir));
+            int count = in.readInt();
+            for(int i = 0; i < count; i++){
+                //for every entry
+                Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+                if(e.offset < 4 || e.compressedSize < 0 || e.offset > directory - e.compressedSize){
+                    throw new IOException("Entry " + e.name + " lies outside the archive!");
+                }
+                entries.put(e.name, e);
+            }
+            long tableOffset = in.readLong();
+            if(tableOffset >= directory){
+                throw new IOException(file + " points at a table outside the archive!");
+            }
+            if(tableOffset >= 0){
+                //entries were coded with a shared table
+                raf.seek(tableOffset);
+                shared = CodeTable.readTable(new FileInputStream(raf.getFD()));
+            }
+        }
+        finally{
+            raf.close();
+        }
+    }
+
+    /**
+     * Codes every file under a directory into a new archive
+     * @param archive the archive to write
+     * @param dir the directory to archive, entries are named by their path under it
+     * @param opts the options to code every entry with
+     * @param shareTable true -> one table built from all files is stored once,
+     *                   false -> every entry carries its own trees
+     * @throws IOException
+     */
+    public static void create(File archive, File dir, EncodeOptions opts, boolean shareTable) throws IOException {
+        Path root = dir.toPath();
+        List<Path> files = new ArrayList<>();
+        try(Stream<Path> walk = Files.walk(root)){
+            walk.filter(Files::isRegularFile).forEach(files::add);
+        }
+        Collections.sort(files);
+
+        EncodeOptions entryOpts = new EncodeOptions(opts);
+        CodeTable table = null;
+        if(shareTable){
+            //one table from the histograms of all files
+            long[] merged = new long[1 << (8 * opts.getSymbolWidth())];
+            for(Path p : files){
+                long[] counts = CompressionEstimate.count(p.toFile(), opts.getSymbolWidth());
+                for(int i = 0; i < merged.length; i++){
+                    merged[i] += counts[i];
+                }
+            }
+            table = new CodeTable(merged, opts.getSymbolWidth());
+            entryOpts.setSharedTable(table);
+        }
+
+        CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.flush();
+        List<Entry> written = new ArrayList<>();
+        for(Path p : files){
+            //for every file, coded straight into the archive
+            long offset = out.count;
+            HuffmanEncoder encoder = new HuffmanEncoder(p.toFile(), out, entryOpts);
+            if(encoder.getFailure() != null){
+                //an archive missing an entry is of no use
+                out.finish();
+                archive.delete();
+                throw encoder.getFailure();
+            }
+            String name = root.relativize(p).toString().replace(File.separatorChar, '/');
+            written.add(new Entry(name, offset, out.count - offset, Files.size(p)));
+        }
+
+        long tableOffset = -1;
+        if(table != null){
+            tableOffset = out.count;
+            table.writeTable(out);
+        }
+
+        long directory = out.count;
+        data.writeInt(written.size());
+        for(Entry e : written){
+            data.writeUTF(e.name);
+            data.writeLong(e.offset);
+            data.writeLong(e.compressedSize);
+            data.writeLong(e.originalSize);
+        }
+        data.writeLong(tableOffset);
+        //trailer
+        data.writeLong(directory);
+        data.writeInt(MAGIC);
+        data.flush();
+        out.finish();
+    }
+
+    /**
+     * @return the entries of the archive, in the order they were written
+     */
+    public List<Entry> list() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Decodes a single entry, seeking straight to it. The entry may not
+     * decode to more than its size in the directory, and a file that
+     * could not be decoded whole is deleted again.
+     * @param name the name of the entry
+     * @param to the file to write the entry to
+     * @throws IOException if there is no such entry, or it is damaged
+     */
+    public void extract(String name, File to) throws IOException {
+        Entry e = entries.get(name);
+        if(e == null){
+            throw new IOException("No entry named " + name + "!");
+        }
+        File parent = to.getAbsoluteFile().getParentFile();
+        if(parent != null){
+            parent.mkdirs();
+        }
+        try{
+            try(FileInputStream in = new FileInputStream(file); FileOutputStream out = new FileOutputStream(to)){
+                in.getChannel().position(e.offset);
+                HuffmanDecoder decoder = new HuffmanDecoder(in, out, shared, e.originalSize);
+                if(decoder.getFailure() != null){
+                    throw decoder.getFailure();
+                }
+            }
+            if(to.length() != e.originalSize){
+                throw new IOException("Entry " + name + " decoded to " + to.length() + " bytes, not " + e.originalSize + "!");
+            }
+        }
+        catch(IOException ex){
+            //a partial entry is of no use
+            to.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Decodes every entry into a directory, several entries at a time
+     * @param dir the directory to extract into
+     * @param threads the number of entries decoded at once
+     * @throws IOException if an entry could not be extracted, or its
+     *                     name would put it outside the directory
+     */
+    public void extractAll(File dir, int threads) throws IOException {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+        List<File> targets = new ArrayList<>();
+        for(Entry e : entries.values()){
+            //names come from the archive, they must stay under dir
+            Path to = root.resolve(e.name).normalize();
+            if(!to.startsWith(root) || to.equals(root)){
+                throw new IOException("Entry " + e.name + " would be written outside " + dir + "!");
+            }
+            targets.add(to.toFile());
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Object>> jobs = new ArrayList<>();
+        int i = 0;
+        for(Entry e : entries.values()){
+            //one job per entry
+            File to = targets.get(i++);
+            jobs.add(pool.submit(() -> {
+                extract(e.name, to);
+                return null;
+            }));
+        }
+        try{
+            for(Future<Object> job : jobs){
+                job.get();
+            }
+        }
+        catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction was interrupted!", ex);
+        }
+        catch(ExecutionException ex){
+            throw new IOException("Could not extract an entry!", ex.getCause());
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+}
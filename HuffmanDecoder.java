@@ -1,89 +1,577 @@
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
 
 
 public class HuffmanDecoder {
+    private static final int FRAME_MAGIC = 0x48554646; //"HUFF"
+    private static final int INHERIT_FRAME = 0x1;
+    private static final int ESCAPE_FLAG = 0x1;
+    private static final int SHARED_FLAG = 0x2;
+    private static final int INHERIT_FLAG = 0x4;
+    private static final int FILTER_FLAG = 0x8;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int WINDOW_SIZE = 1 << 28;
+    //symbols decoded bit by bit between checks for the end of the input
+    private static final int CHECK_SYMBOLS = 1 << 12;
     private File txt;
     private File result;
     private LetterData root;
-    private boolean EOFReached;
+    private CodeTable shared;
+    private LetterData inherited;
+    private int width;
+    private int pad;
+    private long length;
+    private int escape;
+    private int filter;
+    private long written;
+    private ByteBuffer output;
+    private ByteBuffer pooled;
+    private OutputStream stream;
+    private WritableByteChannel channel;
+    private FileChannel mapped;
+    private long frameEnd;
+    private ByteDecodeTable stateTable;
+    private CRC32C crc = new CRC32C();
+    private int crcMark;
+    private IOException failure;
+    private long limit = Long.MAX_VALUE;
 
+    /**
+     * Decodes a Huffman coded file into decoded.txt
+     * @param in the file to be decoded
+     */
     public HuffmanDecoder(File in){
+        this(in, new File("decoded.txt"));
+    }
+
+    /**
+     * Decodes a Huffman coded file, every frame of it one after another.
+     * The output file is memory mapped at the length each frame header
+     * gives, and symbols are decoded straight into the mapping.
+     * @param in the file to be decoded
+     * @param out the file to write the decoded result to
+     */
+    public HuffmanDecoder(File in, File out){
         txt = in;
-        result = new File("decoded.txt");
-        root = null;
-        EOFReached = false;
+        result = out;
         try{
-            
-            BitBuffer inputBuff = new BitBuffer(txt, false);
-            decodeTree(inputBuff);
-            FileOutputStream fis = new FileOutputStream(result);
-            BufferedOutputStream outputBuff = new BufferedOutputStream(fis);
-            while(!EOFReached){
-                decodeLetter(root, inputBuff, outputBuff);
-            }
-            outputBuff.close();
-            inputBuff.close();
-            result.createNewFile();
+            mapped = FileChannel.open(result.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            decode(new FileInputStream(txt), true);
         }
         catch(IOException e){
             e.printStackTrace();
+            failure = e;
         }
     }
 
+    /**
+     * Decodes the frame at the start of a Huffman coded stream, both
+     * streams are closed once done
+     * @param in the stream to be decoded
+     * @param out the stream to write the decoded result to
+     * @param table the table the stream was coded with if it was
+     *              coded with a shared table, otherwise null
+     */
+    public HuffmanDecoder(InputStream in, OutputStream out, CodeTable table){
+        this(in, out, table, Long.MAX_VALUE);
+    }
+
+    /**
+     * Decodes the frame at the start of a Huffman coded stream, failing
+     * before a frame header that claims more than a set number of bytes
+     * is decoded. A region of a single symbol costs no input bits per
+     * symbol, so only such a limit bounds what a forged header decodes
+     * to. Both streams are closed once done.
+     * @param in the stream to be decoded
+     * @param out the stream to write the decoded result to
+     * @param table the table the stream was coded with if it was
+     *              coded with a shared table, otherwise null
+     * @param maxBytes the most bytes the stream may decode to
+     */
+    public HuffmanDecoder(InputStream in, OutputStream out, CodeTable table, long maxBytes){
+        shared = table;
+        limit = maxBytes;
+        stream = out;
+        channel = channelOf(out);
+        output = pooled = BufferPool.shared().acquire(BUFFER_SIZE);
+        try{
+            decode(in, false);
+        }
+        catch(IOException e){
+            e.printStackTrace();
+            failure = e;
+        }
+    }
+
+    /**
+     * Decodes Huffman coded bytes held in memory, every frame of them,
+     * the stream is closed once done
+     * @param in the bytes to be decoded
+     * @param out the stream to write the decoded result to
+     * @param table the table the bytes were coded with if they were
+     *              coded with a shared table, otherwise null
+     */
+    public HuffmanDecoder(byte[] in, OutputStream out, CodeTable table){
+        shared = table;
+        stream = out;
+        channel = channelOf(out);
+        output = pooled = BufferPool.shared().acquire(BUFFER_SIZE);
+        try{
+            decode(new ByteArrayInputStream(in), true);
+        }
+        catch(IOException e){
+            e.printStackTrace();
+            failure = e;
+        }
+    }
+
+    /**
+     * Decodes the frame at the start of a Huffman coded stream into a
+     * channel, through a direct buffer. The input is closed once done,
+     * the channel is left open.
+     * @param in the stream to be decoded
+     * @param out the channel to write the decoded result to
+     * @param table the table the stream was coded with if it was
+     *              coded with a shared table, otherwise null
+     */
+    public HuffmanDecoder(InputStream in, WritableByteChannel out, CodeTable table){
+        shared = table;
+        channel = out;
+        output = pooled = BufferPool.shared().acquire(BUFFER_SIZE);
+        try{
+            decode(in, false);
+        }
+        catch(IOException e){
+            e.printStackTrace();
+            failure = e;
+        }
+    }
+
+    /**
+     * Decodes the frame at the start of a Huffman coded stream straight
+     * into a buffer, from its position on. The buffer needs room for the
+     * whole frame, see decodedLength(File). The input is closed once done.
+     * @param in the stream to be decoded
+     * @param out the buffer to write the decoded result to
+     * @param table the table the stream was coded with if it was
+     *              coded with a shared table, otherwise null
+     */
+    public HuffmanDecoder(InputStream in, ByteBuffer out, CodeTable table){
+        shared = table;
+        output = out;
+        try{
+            decode(in, false);
+        }
+        catch(IOException e){
+            e.printStackTrace();
+            failure = e;
+        }
+    }
+
+    /**
+     * Adds up the lengths in the frame headers of a coded file, walking
+     * back through the frame trailers
+     * @param encoded the coded file
+     * @return the number of bytes decoding the file writes
+     * @throws IOException if the file is not made of frames
+     */
+    public static long decodedLength(File encoded) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(encoded, "r");
+        try{
+            long total = 0;
+            long end = raf.length();
+            while(end > 0){
+                //walk back one frame
+                raf.seek(end - 8);
+                long start = end - raf.readLong();
+                raf.seek(Math.max(0, start));
+                if(start < 0 || start >= end || raf.readInt() != FRAME_MAGIC){
+                    throw new IOException(encoded + " is not made of Huffman coded frames!");
+                }
+                //frame flags, width and pad come before the length
+                raf.skipBytes(3);
+                total += raf.readLong();
+                end = start;
+            }
+            return total;
+        }
+        finally{
+            raf.close();
+        }
+    }
+
+    /**
+     * Decodes the frames of the input into the output set up by the
+     * constructor
+     * @param in the stream to be decoded
+     * @param allFrames true -> every frame up to the end of the input,
+     *                  false -> only the first frame
+     * @throws IOException
+     */
+    private void decode(InputStream in, boolean allFrames) throws IOException{
+        inherited = null;
+        written = 0;
+        CodecMetrics.Phase phase = CodecMetrics.begin("decode");
+        BitBuffer inputBuff = new BitBuffer(in);
+        int frames = 0;
+        try{
+            while(frames == 0 || (allFrames && !inputBuff.atEnd())){
+                //for every frame appended to the file
+                decodeFrame(inputBuff);
+                frames++;
+            }
+            drain();
+        }
+        finally{
+            inputBuff.close();
+            if(stream != null){
+                stream.close();
+            }
+            if(mapped != null){
+                mapped.close();
+            }
+            BufferPool.shared().release(pooled);
+            pooled = null;
+        }
+        phase.end(written);
+        CodecMetrics.add("decode.runs", 1);
+        CodecMetrics.add("decode.frames", frames);
+        CodecMetrics.add("decode.bytes.out", written);
+    }
+
+    /**
+     * Decodes every region of a frame until the length in its header
+     * has been written, then skips the frame's trailer
+     * @param inputBuff the input of the file given
+     * @throws IOException if the input is not a frame
+     */
+    private void decodeFrame(BitBuffer inputBuff) throws IOException{
+        root = null;
+        if(inputBuff.readInt() != FRAME_MAGIC){
+            throw new IOException("Input is not a Huffman coded frame!");
+        }
+        int frameFlags = inputBuff.readByte() & 0xFF;
+        //header describing the alphabet
+        width = inputBuff.readByte() & 0xFF;
+        pad = inputBuff.readByte() & 0xFF;
+        length = inputBuff.readLong();
+        if(inputBuff.pastEnd()){
+            throw new IOException("Input ended in the middle of a frame!");
+        }
+        if(width == 0 || length < 0 || (length + pad) % width != 0){
+            throw new IOException("Frame header is damaged!");
+        }
+        if(length > limit - written){
+            throw new IOException("Frame decodes to " + length + " bytes, more than the " + limit + " allowed!");
+        }
+        long symbols = (length + pad) / width;
+        long decoded = 0;
+        frameEnd = written + length;
+        if(mapped != null){
+            //output of the frame is mapped as it is reached
+            output = null;
+        }
+        do{
+            //for every region, each with its own tree
+            long count = decodeRegionHeader(inputBuff);
+            if(decoded == 0 && (frameFlags & INHERIT_FRAME) == 0){
+                //table later frames may inherit
+                inherited = root;
+            }
+            if(count < 0 || count > symbols - decoded){
+                throw new IOException("Region runs past the end of the frame!");
+            }
+            decoded += count;
+            crc.reset();
+            crcMark = output != null ? output.position() : 0;
+            if(filter != PreFilter.NONE){
+                decodeFiltered(inputBuff, count, decoded == symbols);
+            }
+            else{
+                decodeRegion(inputBuff, count, decoded == symbols);
+            }
+            inputBuff.alignRead();
+            checksum();
+            int check = inputBuff.readInt();
+            if(inputBuff.pastEnd()){
+                throw new IOException("Input ended in the middle of a frame!");
+            }
+            if(check != (int) crc.getValue()){
+                throw new IOException("Region ending at byte " + written + " of the output is damaged!");
+            }
+        }
+        while(decoded < symbols);
+        //length of the frame, only needed when walking back
+        inputBuff.readLong();
+        if(inputBuff.pastEnd()){
+            throw new IOException("Input ended in the middle of a frame!");
+        }
+    }
+
+    /**
+     * Decodes the symbols of one region. Symbols are decoded in runs
+     * that fit the room left in the output, with no checks inside a run.
+     * The end of the input is checked after every run, so a cut short
+     * region stops before much garbage is written.
+     * @param inputBuff the input of the file given
+     * @param count the number of symbols in the region
+     * @param last whether the region ends the frame, its last symbol
+     *             then holds the padding
+     * @throws IOException if the output has no room left or the input
+     *                     ends first
+     */
+    private void decodeRegion(BitBuffer inputBuff, long count, boolean last) throws IOException{
+        long whole = last && count > 0 ? count - 1 : count;
+        long done = 0;
+        if(useStateTable(whole)){
+            done = decodeBytes(inputBuff, whole);
+        }
+        while(done < whole){
+            //as many symbols as there is room for
+            long run = Math.min(Math.min(whole - done, CHECK_SYMBOLS), room(width) / width);
+            for(long i = 0; i < run; i++){
+                putSymbol(nextSymbol(inputBuff), width);
+            }
+            done += run;
+            if(inputBuff.pastEnd()){
+                throw new IOException("Input ended in the middle of a region!");
+            }
+        }
+        if(whole < count){
+            //last symbol of the file, drop the padding
+            char letter = nextSymbol(inputBuff);
+            room(width - pad);
+            putSymbol(letter, width - pad);
+        }
+    }
+
+    /**
+     * Decodes the symbols of a filtered region a block at a time. Each
+     * block is decoded into a block of its own, turned back with the
+     * region's filter and then copied to the output.
+     * @param inputBuff the input of the file given
+     * @param count the number of symbols in the region
+     * @param last whether the region ends the frame, its last symbol
+     *             then holds the padding
+     * @throws IOException if the output has no room left
+     */
+    private void decodeFiltered(BitBuffer inputBuff, long count, boolean last) throws IOException{
+        byte[] block = new byte[(int) Math.min(count, PreFilter.BLOCK_SYMBOLS) * width];
+        byte[] plain = new byte[block.length];
+        ByteBuffer real = output;
+        //built for the whole region, blocks alone may be too short
+        useStateTable(count);
+        for(long done = 0; done < count; ){
+            //for every block of the region
+            int symbols = (int) Math.min(count - done, PreFilter.BLOCK_SYMBOLS);
+            long before = written;
+            output = ByteBuffer.wrap(block);
+            decodeRegion(inputBuff, symbols, false);
+            output = real;
+            written = before;
+            done += symbols;
+            PreFilter.invert(filter, block, symbols * width, plain);
+            int bytes = symbols * width - (last && done == count ? pad : 0);
+            for(int off = 0; off < bytes; ){
+                //as many bytes as there is room for
+                int n = Math.min(bytes - off, room(1));
+                output.put(plain, off, n);
+                off += n;
+                written += n;
+            }
+            real = output;
+        }
+    }
+
+    /**
+     * Picks the state table for the current tree, building one if the
+     * region is long enough to pay for it. Building costs about as much
+     * as decoding 512 symbols per state bit by bit.
+     * @param symbols the number of symbols to decode with it
+     * @return whether there is a table to decode with
+     */
+    private boolean useStateTable(long symbols){
+        if(stateTable != null && stateTable.getRoot() == root && stateTable.getEscape() == escape){
+            //same tree as before, shared or inherited
+            return true;
+        }
+        int states = ByteDecodeTable.countStates(root);
+        if(states == 0 || states > ByteDecodeTable.MAX_STATES || symbols < 512L * states){
+            return false;
+        }
+        stateTable = new ByteDecodeTable(root, escape);
+        return true;
+    }
+
+    /**
+     * Decodes symbols a whole input byte at a time with the state table,
+     * bit by bit only up to the first byte boundary and after escapes.
+     * Stops right at the end of the last symbol asked for.
+     * @param inputBuff the input of the file given
+     * @param whole the number of symbols to decode
+     * @return the number of symbols decoded, all of them
+     * @throws IOException if the input ends first
+     */
+    private long decodeBytes(BitBuffer inputBuff, long whole) throws IOException{
+        ByteDecodeTable fsm = stateTable;
+        long done = 0;
+        int state = 0;
+        while(done < whole){
+            if(!inputBuff.isAligned()){
+                //one bit at a time up to the next byte
+                int c = fsm.child(state, inputBuff.readBit());
+                if(c >= 0){
+                    state = c;
+                    continue;
+                }
+                char letter = (char) (-c - 1);
+                if(letter == escape){
+                    letter = readSymbol(inputBuff);
+                }
+                room(width);
+                putSymbol(letter, width);
+                done++;
+                state = 0;
+                continue;
+            }
+            int b = inputBuff.readAlignedByte();
+            if(b < 0){
+                throw new IOException("Input ended in the middle of a region!");
+            }
+            int e = fsm.entry(state, b);
+            int n = fsm.count(e);
+            if(done + n < whole && !fsm.escaped(e)){
+                //every symbol of the step is wanted
+                room(n * width);
+                for(int i = 0; i < n; i++){
+                    putSymbol(fsm.symbol(e, i), width);
+                }
+                done += n;
+                state = fsm.next(e);
+            }
+            else{
+                //step reaches an escape or the end, stop at its last symbol
+                for(int i = 0; i < n && done < whole; i++){
+                    char letter = fsm.symbol(e, i);
+                    if(i == n - 1 || done + 1 == whole){
+                        //bits after this symbol are read again
+                        inputBuff.unreadBits(8 - fsm.end(e, i));
+                        if(letter == escape){
+                            letter = readSymbol(inputBuff);
+                        }
+                    }
+                    room(width);
+                    putSymbol(letter, width);
+                    done++;
+                }
+                state = 0;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Reads the header of a region and the region's tree
+     * @param inputBuff the input of the file given
+     * @return the number of symbols in the region
+     * @throws IOException
+     */
+    private long decodeRegionHeader(BitBuffer inputBuff) throws IOException{
+        int flags = inputBuff.readByte() & 0xFF;
+        long count = inputBuff.readLong();
+        filter = (flags & FILTER_FLAG) != 0 ? inputBuff.readByte() & 0xFF : PreFilter.NONE;
+        if(!PreFilter.isValid(filter)){
+            throw new IOException("Region has a filter that is not known!");
+        }
+        escape = (flags & ESCAPE_FLAG) != 0 ? readSymbol(inputBuff) : -1;
+        if(count == 0){
+            //empty region, no tree was written
+            root = null;
+        }
+        else if((flags & INHERIT_FLAG) != 0){
+            if(inherited == null){
+                throw new IOException("Region inherits a table from a frame that is not there!");
+            }
+            root = inherited;
+        }
+        else if((flags & SHARED_FLAG) == 0){
+            //region carries its own tree
+            decodeTree(inputBuff);
+        }
+        else if(shared != null && shared.getWidth() == width){
+            CodecMetrics.add("table.shared.uses", 1);
+            root = shared.getRoot();
+        }
+        else{
+            throw new IOException("Region was coded with a shared table that was not given!");
+        }
+        return count;
+    }
+
      /**
      * Reads the tree from the given file and reconstructs it
      * @param inputBuff the input of the file given
      * @throws IOException
      */
     private void decodeTree(BitBuffer inputBuff) throws IOException{
-        root = createTree(root, inputBuff);
+        CodecMetrics.Phase phase = CodecMetrics.begin("readTree");
+        root = CodeTable.readTree(inputBuff, width);
+        phase.end(0);
     }
 
     /**
-     * Recursively build the huffman tree from the given file
-     * @param curr current node to be made
-     * @param input input stream from given file
-     * @throws IOException
+     * Reads a raw symbol of width bytes, big endian
+     * @param input the bit buffer of the encoded file
+     * @return the symbol read
      */
-    private LetterData createTree(LetterData curr, BitBuffer input) throws IOException{
-        boolean out = input.readBit();
-        if(out){
-            //base case: leaf node to be made, letter of node is next byte
-            char letter = (char) input.readByte();
-            curr = new LetterData(letter + "", -1);
+    private char readSymbol(BitBuffer input){
+        char letter = 0;
+        for(int i = 0; i < width; i++){
+            //for every byte of the symbol
+            letter = (char) ((letter << 8) | (input.readByte() & 0xFF));
         }
-        else{
-            //recursion, parent node inserted
-            curr = new LetterData();
-            curr.left = createTree(curr.left, input);
-            curr.right = createTree(curr.right, input);
+        return letter;
+    }
+
+    /**
+     * Decodes the next symbol, following escapes to the raw symbol
+     * @param input the bit buffer of the encoded file
+     * @return the symbol decoded
+     * @throws IOException
+     */
+    private char nextSymbol(BitBuffer input) throws IOException{
+        char letter = decodeLetter(root, input);
+        if(letter == escape){
+            //symbol was not in the tree, it follows as is
+            letter = readSymbol(input);
         }
-        return curr;
+        return letter;
     }
 
     /**
      * Recursively traverses the huffman tree to decode one letter
-     * and write it to the new file
      * @param curr the current node of the tree
      * @param input the bit buffer of the encoded file
-     * @param output the output for the decoded file
+     * @return the symbol decoded
      * @throws IOException
      */
-    private void decodeLetter(LetterData curr, BitBuffer input, BufferedOutputStream output) throws IOException{
-        if(curr.left == null && curr.left == null){
+    private char decodeLetter(LetterData curr, BitBuffer input) throws IOException{
+        if(curr.left == null && curr.right == null){
             //base case: leaf node, a letter is decoded
-            char letter =  curr.c.charAt(0);
-            if(letter != (char) 3){
-                //not the end of text character
-                output.write(letter);
-            }
-            else{
-                //end of text reached
-                EOFReached = true;
-            }
+            return curr.c.charAt(0);
         }
         else{
             //recursive
@@ -91,12 +579,110 @@ public class HuffmanDecoder {
             
             if(!in){
                 //bit is zero, go left
-                decodeLetter(curr.left, input, output);
+                return decodeLetter(curr.left, input);
             }
             else{
                 //bit is one, go right
-                decodeLetter(curr.right, input, output);
+                return decodeLetter(curr.right, input);
+            }
+        }
+    }
+
+    /**
+     * @return the error decoding stopped at, or null if it succeeded
+     */
+    public IOException getFailure(){
+        return failure;
+    }
+
+    /**
+     * @return the length of the last frame decoded, as stored in its header
+     */
+    public long getDecodedLength(){
+        return length;
+    }
+
+    /**
+     * Puts the leading bytes of a symbol into the output, which has
+     * been checked to have room for them
+     * @param symbol the symbol to be written
+     * @param count the number of bytes of the symbol to write
+     */
+    private void putSymbol(char symbol, int count){
+        if(count == 1 && width == 1){
+            output.put((byte) symbol);
+        }
+        else{
+            for(int i = 0; i < count; i++){
+                //for every byte kept, big endian
+                output.put((byte) (symbol >> (8 * (width - 1 - i))));
+            }
+        }
+        written += count;
+    }
+
+    /**
+     * Makes room in the output for at least the given number of bytes,
+     * handing what has been decoded to the stream or channel, or mapping
+     * the next window of the output file
+     * @param needed the number of bytes about to be written
+     * @return the number of bytes there is room for
+     * @throws IOException if a buffer given by the caller is full
+     */
+    private int room(int needed) throws IOException{
+        if(output != null && output.remaining() >= needed){
+            return output.remaining();
+        }
+        //bytes about to leave the buffer are checked on the way
+        checksum();
+        if(mapped != null){
+            //map the rest of the frame, a window at a time
+            long size = Math.min(WINDOW_SIZE, frameEnd - written);
+            output = mapped.map(FileChannel.MapMode.READ_WRITE, written, size);
+        }
+        else if(stream != null || channel != null){
+            drain();
+        }
+        crcMark = output.position();
+        if(output.remaining() < needed){
+            throw new IOException("Output buffer is too small for the decoded frame!");
+        }
+        return output.remaining();
+    }
+
+    /**
+     * Adds the bytes decoded since the last call to the region's checksum
+     */
+    private void checksum(){
+        if(output != null && output.position() > crcMark){
+            ByteBuffer done = output.duplicate();
+            done.limit(output.position()).position(crcMark);
+            crc.update(done);
+        }
+    }
+
+    /**
+     * @param out a stream to decode into
+     * @return a channel writing to it, the file's own for a file
+     */
+    private static WritableByteChannel channelOf(OutputStream out){
+        if(out instanceof FileOutputStream){
+            return ((FileOutputStream) out).getChannel();
+        }
+        return Channels.newChannel(out);
+    }
+
+    /**
+     * Hands the bytes decoded so far to the stream or channel
+     * @throws IOException
+     */
+    private void drain() throws IOException{
+        if(channel != null){
+            output.flip();
+            while(output.hasRemaining()){
+                channel.write(output);
             }
+            output.clear();
         }
     }
 }
@@ -1,213 +1,723 @@
-import datastructs.PriorityQueue;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.IOException;
 import java.io.File;
-import java.util.Map;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
 
 public class HuffmanEncoder {
+    private static final int SEGMENT_SIZE = PreFilter.BLOCK_SYMBOLS;
+    private static final int STRIDE_BLOCK = 1 << 16;
+    //fewest symbols a region needs before building a pair table pays off
+    private static final long PAIR_MIN = 1 << 16;
+    //flags and count, and the checksum after the codes
+    private static final int REGION_HEADER_BITS = 72 + 32;
+    //frame header, alphabet header, length and frame trailer
+    private static final int FRAME_BITS = 40 + 16 + 64 + 64;
+    private static final int FRAME_MAGIC = 0x48554646; //"HUFF"
+    private static final int INHERIT_FRAME = 0x1;
+    private static final int ESCAPE_FLAG = 0x1;
+    private static final int SHARED_FLAG = 0x2;
+    private static final int INHERIT_FLAG = 0x4;
+    private static final int FILTER_FLAG = 0x8;
     private File txt;
+    private byte[] bytes;
+    private long length;
     private File result;
-    private PriorityQueue<LetterData> queue;
-    private LetterData root;
-    private HashMap<Character, ArrayList<Boolean>> encodings;
-    private Map<Character, Integer> data;
-    
+    private OutputStream out;
+    private EncodeOptions options;
+    private CodeTable table;
+    private CodeTable inherited;
+    private long[] data;
+    private ArrayList<long[]> regions;
+    private ArrayList<Integer> regionFilters;
+    private int filter;
+    private int width;
+    private int pad;
+    private long encodedBits;
+    private long fullPassBits;
+    private CRC32C crc = new CRC32C();
+    private long checked;
+    private IOException failure;
+
     /**
-     * Takes a file and Huffman codes it
+     * Takes a file and Huffman codes it one byte at a time
      * @param given the file to be encoded
      * @param to    the file to write the encoded result to
      */
     public HuffmanEncoder(File given, File to) {
-        txt = given;
+        this(given, to, new EncodeOptions());
+    }
+
+    /**
+     * Takes a file and Huffman codes it using symbols that are
+     * symbolWidth bytes wide
+     * @param given the file to be encoded
+     * @param to    the file to write the encoded result to
+     * @param symbolWidth the number of bytes per symbol: 1 -> 8 bit, 2 -> 16 bit
+     */
+    public HuffmanEncoder(File given, File to, int symbolWidth) {
+        this(given, to, new EncodeOptions().setSymbolWidth(symbolWidth));
+    }
+
+    /**
+     * Takes a file and Huffman codes it with the given options. If
+     * coding fails part way, the file is cut back to the length it had
+     * before, so an append leaves the frames already there readable.
+     * @param given the file to be encoded
+     * @param to    the file to write the encoded result to
+     * @param opts  the symbol width, sampling and splitting to use
+     */
+    public HuffmanEncoder(File given, File to, EncodeOptions opts) {
+        setup(given, opts);
         result = to;
-        data = new HashMap<>();
-        queue = new PriorityQueue<>();
- 
+        long before = options.isAppend() ? result.length() : 0;
+        FileOutputStream fileOut = null;
         try {
-            //add end of text character to file
-            FileOutputStream output = new FileOutputStream(txt, true);
-            output.write((char) 3);
-            //count the occurence of letters in file
-            FileInputStream reader = new FileInputStream(txt);
-            BufferedInputStream buffer = new BufferedInputStream(reader);
-            mapFile(buffer);
-            output.close();
+            if(options.isInheritTable()){
+                //table of the frame being appended to
+                inherited = readLastTable(result, width);
+            }
+            fileOut = new FileOutputStream(result, options.isAppend());
+            encodeTo(fileOut);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
+            failure = e;
         } catch (IOException e) {
             e.printStackTrace();
+            failure = e;
+            if(fileOut != null){
+                cutBack(fileOut, before);
+            }
         }
 
-        //create huffman tree
-        populateQueue();
-        createTree();
-
-        //write new encoded file
-        encodings = new HashMap<>();
-        ArrayList<Boolean> stepKeeper = new ArrayList<>();
-        getEncodings(root, stepKeeper);
-        encode();
-        
         try{
             result.createNewFile();
         }
+        catch(IOException e){
+            e.printStackTrace();
+            if(failure == null){
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Takes a file and Huffman codes it into a stream with the given
+     * options, the stream is closed once done
+     * @param given the file to be encoded
+     * @param to    the stream to write the encoded result to
+     * @param opts  the symbol width, sampling and splitting to use
+     */
+    public HuffmanEncoder(File given, OutputStream to, EncodeOptions opts) {
+        setup(given, opts);
+        try {
+            encodeTo(to);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failure = e;
+        }
+    }
+
+    /**
+     * Huffman codes bytes held in memory into a stream with the given
+     * options, the stream is closed once done
+     * @param given the bytes to be encoded
+     * @param to    the stream to write the encoded result to
+     * @param opts  the symbol width, sampling and splitting to use
+     */
+    public HuffmanEncoder(byte[] given, OutputStream to, EncodeOptions opts) {
+        bytes = given;
+        setup(null, opts);
+        try {
+            encodeTo(to);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failure = e;
+        }
+    }
+
+    /**
+     * Cuts the output file back to its length before a frame that
+     * failed part way, so the frames already in it can still be read
+     * @param fileOut the stream the frame was written through
+     * @param length the length of the file before the frame
+     */
+    private void cutBack(FileOutputStream fileOut, long length) {
+        try{
+            fileOut.close();
+            RandomAccessFile raf = new RandomAccessFile(result, "rw");
+            try{
+                raf.getChannel().truncate(length);
+            }
+            finally{
+                raf.close();
+            }
+        }
         catch(IOException e){
             e.printStackTrace();
         }
     }
 
+    /**
+     * @return the error coding stopped at, or null if it succeeded
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Sets up the fields shared by the constructors
+     * @param given the file to be encoded, null if coding bytes
+     * @param opts  the options to use
+     */
+    private void setup(File given, EncodeOptions opts) {
+        txt = given;
+        length = txt != null ? txt.length() : bytes.length;
+        options = opts;
+        width = options.getSymbolWidth();
+        //zero bytes needed to make the input a whole number of symbols
+        pad = (int) ((width - length % width) % width);
+        data = new long[1 << (8 * width)];
+    }
+
+    /**
+     * Picks the way of coding the options ask for and codes the file
+     * @param to the stream to write the encoded result to
+     * @throws IOException
+     */
+    private void encodeTo(OutputStream to) throws IOException {
+        out = to;
+        long allocated = CodecMetrics.allocatedBytes();
+        CodecMetrics.Phase phase = CodecMetrics.begin("encode");
+        if(options.getSharedTable() != null && options.getSharedTable().getWidth() != width){
+            throw new IOException("Shared table has a different symbol width!");
+        }
+        if(options.getSharedTable() != null){
+            //table is known already, one pass and no tree
+            CodecMetrics.add("table.shared.uses", 1);
+            table = options.getSharedTable();
+            encode(openInput(), true);
+            fullPassBits = encodedBits;
+        }
+        else if(inherited != null && covers(inherited)){
+            //last frame's table codes every symbol, no tree needed
+            table = inherited;
+            encode(openInput(), false);
+            fullPassBits = encodedBits;
+        }
+        else if(options.getSampleSize() > 0){
+            //fast mode, one pass with a tree built from a sample
+            encodeSampled();
+        }
+        else{
+            //count the occurence of symbols in file
+            regions = new ArrayList<>();
+            regionFilters = new ArrayList<>();
+            CodecMetrics.Phase counting = CodecMetrics.begin("mapFile");
+            mapRegions(openInput());
+            counting.end(length);
+            //write new encoded file, one tree per region
+            encodeRegions(openInput());
+            fullPassBits = encodedBits;
+            if(regions.size() > 1){
+                //size a single tree would have come to
+                fullPassBits = FRAME_BITS + regionBits(new CodeTable(data, width), data);
+            }
+        }
+        phase.end(length);
+        recordMetrics(allocated);
+    }
+
+    /**
+     * Adds this run to the sizes, ratio and allocation kept in CodecMetrics
+     * @param allocated the bytes the thread had allocated before coding
+     */
+    private void recordMetrics(long allocated) {
+        long outBytes = (encodedBits + 7) / 8;
+        CodecMetrics.add("encode.runs", 1);
+        CodecMetrics.add("encode.bytes.in", length);
+        CodecMetrics.add("encode.bytes.out", outBytes);
+        if(length > 0){
+            CodecMetrics.histogram("encode.ratio.permille").record(outBytes * 1000 / length);
+            if(allocated >= 0){
+                //bytes allocated per KB of input
+                long used = CodecMetrics.allocatedBytes() - allocated;
+                CodecMetrics.histogram("encode.alloc.perKB").record(used * 1024 / length);
+            }
+        }
+    }
+
+    /**
+     * Opens the given file or bytes followed by the zero padding,
+     * without modifying the file itself
+     * @return a stream over the padded file contents
+     * @throws IOException
+     */
+    private InputStream openInput() throws IOException {
+        byte[] trailer = new byte[pad];
+        InputStream reader = txt != null ? new MappedInputStream(txt) : new ByteArrayInputStream(bytes);
+        return new SequenceInputStream(reader, new ByteArrayInputStream(trailer));
+    }
+
      /**
-     * Reads the given file byte by byte and maps the frequency of
-     * occurance into a data map
+     * Reads the given input a block at a time and counts the frequency of
+     * occurance into a histogram
+     * @param buffer the input to be counted
+     * @param counts the histogram to count into
      * @throws IOException attempts to read the given file
      */
-    private void mapFile(BufferedInputStream buffer) throws IOException {
-        int output = buffer.read();
-        char input = (char) output;
-        while(output != -1){
-            //until end of file
-            if(data.get(input) != null){
-                //already in map
-                data.replace(input, data.get(input) + 1);
+    private void mapFile(InputStream buffer, long[] counts) throws IOException {
+        CompressionEstimate.countInto(buffer, width, counts);
+    }
+
+    /**
+     * Counts the given input into the data histogram and splits it into
+     * regions. Without block splitting or filters the whole input is one
+     * region. Otherwise the input is counted in segments, and each
+     * segment is either merged into the current region or starts a new
+     * one, whichever has the lower estimated cost. With filters every
+     * segment is counted as its filter leaves it, and only segments with
+     * the same filter are merged.
+     * @param buffer the input to be counted
+     * @throws IOException
+     */
+    private void mapRegions(InputStream buffer) throws IOException {
+        if(!options.isAdaptive() && !options.isPreFiltered()){
+            //one region, the whole file
+            mapFile(buffer, data);
+            regions.add(data);
+            regionFilters.add(PreFilter.NONE);
+            return;
+        }
+        PreFilter filters = options.isPreFiltered() ? new PreFilter(width) : null;
+        long[] region = null;
+        int regionFilter = PreFilter.NONE;
+        long[] segment = new long[data.length];
+        double regionCost = 0;
+        byte[] block = new byte[SEGMENT_SIZE * width];
+        byte[] filtered = filters != null ? new byte[block.length] : null;
+        int read = buffer.readNBytes(block, 0, block.length);
+        while(read > 0){
+            //until end of file, a segment at a time
+            CompressionEstimate.countSymbols(block, 0, read, width, segment);
+            for(int i = 0; i < data.length; i++){
+                data[i] += segment[i];
+            }
+            int segmentFilter = filters != null ? filters.choose(block, read) : PreFilter.NONE;
+            if(segmentFilter != PreFilter.NONE){
+                //the codes are made from the filtered bytes
+                PreFilter.apply(segmentFilter, block, read, filtered);
+                Arrays.fill(segment, 0);
+                CompressionEstimate.countSymbols(filtered, 0, read, width, segment);
+            }
+            //segment is complete, merge it or split here
+            boolean merge = region != null && segmentFilter == regionFilter;
+            double segmentCost = options.isAdaptive() ? estimateCost(segment, null) : 0;
+            double mergedCost = merge && options.isAdaptive() ? estimateCost(region, segment) : 0;
+            if(merge && mergedCost <= regionCost + segmentCost){
+                //statistics are close enough, keep the tree going
+                for(int i = 0; i < region.length; i++){
+                    region[i] += segment[i];
+                }
+                regionCost = mergedCost;
+                Arrays.fill(segment, 0);
             }
             else{
-                //not in map
-                data.put(input, 1);
+                //statistics shifted, start a new region
+                region = segment;
+                regionFilter = segmentFilter;
+                regions.add(region);
+                regionFilters.add(regionFilter);
+                regionCost = segmentCost;
+                segment = new long[data.length];
             }
-            output = buffer.read();
-            input = (char) output;
+            read = buffer.readNBytes(block, 0, block.length);
         }
         buffer.close();
+        if(regions.isEmpty()){
+            //empty file, one region with no symbols
+            regions.add(data);
+            regionFilters.add(PreFilter.NONE);
+        }
     }
 
     /**
-     * Takes the values from the frequency map, makes nodes 
-     * of them and adds the nodes to a priority queue
+     * Estimates the bits needed to code a histogram with its own tree,
+     * using the entropy of the histogram for the codes
+     * @param a the histogram to estimate
+     * @param b a histogram to add to a, or null
+     * @return the estimated number of bits, region header included
      */
-    private void populateQueue() {
-        
-        Set<Character> keys = data.keySet();
-        for (Character c : keys) {
-            // for every key, value pair
-            LetterData myLet = new LetterData(c.toString(), data.get(c));
-            queue.pushIn(myLet);
+    private double estimateCost(long[] a, long[] b) {
+        return REGION_HEADER_BITS + CompressionEstimate.treeAndCodeBits(a, b, width, 1);
+    }
+
+    /**
+     * Builds the tree from a sample of the file and codes the file in
+     * a single pass. Symbols missing from the sample are escaped. The
+     * real histogram is counted while coding so the size of a full pass
+     * tree can be reported afterwards.
+     * @throws IOException
+     */
+    private void encodeSampled() throws IOException {
+        long[] sample = new long[data.length];
+        InputStream input = openInput();
+        if(options.isStrided()){
+            //blocks spread across the file
+            if(txt != null){
+                CompressionEstimate.sample(txt, width, options.getSampleSize(), sample);
+            }
+            else{
+                sampleBytes(sample);
+            }
+        }
+        else{
+            //front of the file, kept in memory so it is only read once
+            long size = Math.min(options.getSampleSize(), Integer.MAX_VALUE - 8);
+            byte[] prefix = input.readNBytes((int) (size - size % width));
+            mapFile(new ByteArrayInputStream(prefix), sample);
+            input = new SequenceInputStream(new ByteArrayInputStream(prefix), input);
         }
+        table = new CodeTable(sample, width, true);
+        encode(input, true);
+
+        fullPassBits = FRAME_BITS + regionBits(new CodeTable(data, width), data);
     }
 
     /**
-     * Uses the Huffman algorithm to create a huffman tree
-     * from the data
+     * Counts evenly spaced blocks of the bytes into a histogram
+     * @param sample the histogram to count into
+     * @throws IOException
      */
-    private void createTree() {
-        while (queue.size() >= 2) {
-            // until one letter data left
-            LetterData firstOut = queue.pop();
-            LetterData secondOut = queue.pop();
-            LetterData combined = new LetterData(firstOut, firstOut.c + secondOut.c,
-                    firstOut.frequency + secondOut.frequency, secondOut);
-            queue.pushIn(combined);
+    private void sampleBytes(long[] sample) throws IOException {
+        int blockSize = (int) Math.min(STRIDE_BLOCK, options.getSampleSize());
+        blockSize -= blockSize % width;
+        if(blockSize == 0 || length == 0){
+            //nothing to sample
+            return;
+        }
+        long blocks = (options.getSampleSize() + blockSize - 1) / blockSize;
+        int stride = (int) Math.max(blockSize, length / blocks);
+        for(int pos = 0; pos < length; pos += stride){
+            //for every sampled block, starting on a symbol boundary
+            int start = pos - pos % width;
+            int size = Math.min(blockSize, bytes.length - start);
+            mapFile(new ByteArrayInputStream(bytes, start, size - size % width), sample);
         }
-        // tree is complete, letter data left is root
-        root = queue.pop();
     }
 
     /**
-     * Recursively builds the byte encoding for letters and
-     * stores them in a hash map
-     * @param curr
-     * @param steps
+     * Uses the region histograms to create a new file according to
+     * the huffman encoding, with a tree for every region
+     * @param input the padded input to be coded
+     * @throws IOException
      */
-    private void getEncodings(LetterData curr, ArrayList<Boolean> steps){
-        if(curr.left == null && curr.right == null){
-            //base case: leaf node
-            encodings.put(curr.c.charAt(0), new ArrayList<Boolean>(steps));
+    private void encodeRegions(InputStream input) throws IOException {
+        BitBuffer writeBuff = new BitBuffer(out);
+        try{
+            writeHeader(writeBuff);
+            for(int r = 0; r < regions.size(); r++){
+                //for every region, in order
+                long[] region = regions.get(r);
+                table = new CodeTable(region, width);
+                filter = regionFilters.get(r);
+                long count = 0;
+                for(long c : region){
+                    count += c;
+                }
+                encodedBits += writeRegion(input, writeBuff, count, false);
+            }
+            filter = PreFilter.NONE;
+            writeTrailer(writeBuff);
         }
-        else{
-            //recursive backtracking
-            //append 0, go left, then remove the 0 once done
-            steps.add(false);
-            getEncodings(curr.left, steps);
-            steps.remove(steps.size() - 1);
-            //append 1, go right, then remove the 1 once done
-            steps.add(true);
-            getEncodings(curr.right, steps);
-            steps.remove(steps.size() - 1);
+        finally{
+            input.close();
+            writeBuff.close();
+        }
+        if(writeBuff.getFailure() != null){
+            throw writeBuff.getFailure();
         }
     }
 
     /**
-     * Uses the tree to create a new file according to the
-     * huffman encoding
+     * Codes the whole input as a single region with the current table
+     * @param input the padded input to be coded
+     * @param count whether to count the histogram while coding
+     * @throws IOException
      */
-    private void encode() {
+    private void encode(InputStream input, boolean count) throws IOException {
+        BitBuffer writeBuff = new BitBuffer(out);
         try{
-            BitBuffer writeBuff = new BitBuffer(result, true);
-            writeTree(root, writeBuff);
-            writeGiven(writeBuff);
+            writeHeader(writeBuff);
+            long symbols = (length + pad) / width;
+            encodedBits += writeRegion(input, writeBuff, symbols, count);
+            writeTrailer(writeBuff);
+        }
+        finally{
+            input.close();
             writeBuff.close();
         }
-        catch(IOException ex){
-            ex.printStackTrace();
+        if(writeBuff.getFailure() != null){
+            throw writeBuff.getFailure();
         }
     }
 
     /**
-     * Recursively writes the tree to the given file
-     * @param curr the current node of the tree to recurse on
-     * @param buffer the output stream for the output file
+     * Writes the frame header, the header describing the alphabet and
+     * the length of the file, which tells the decoder where to stop
+     * @param writeBuff the output buffer
+     */
+    private void writeHeader(BitBuffer writeBuff) {
+        writeBuff.writeInt(FRAME_MAGIC);
+        writeBuff.writeByte((byte) (table != null && table == inherited ? INHERIT_FRAME : 0));
+        writeBuff.writeByte((byte) width);
+        writeBuff.writeByte((byte) pad);
+        writeBuff.writeLong(length);
+        encodedBits = 120;
+        checked = 0;
+    }
+
+    /**
+     * Ends the frame with its length in bytes, trailer included, so
+     * frames can be walked back from the end of a file
+     * @param writeBuff the output buffer
+     */
+    private void writeTrailer(BitBuffer writeBuff) {
+        encodedBits += 64;
+        writeBuff.writeLong(encodedBits / 8);
+    }
+
+    /**
+     * Finds the table of the last frame of an encoded file: the table
+     * of its first region, or of the frame it inherited from
+     * @param encoded the file frames will be appended to
+     * @param symbolWidth the width the table has to have
+     * @return the table, or null if there is none that can be used
      * @throws IOException
      */
-    private void writeTree(LetterData curr, BitBuffer buffer) throws IOException {
-        if(curr == null){
-            //base case: don't write anything
+    public static CodeTable readLastTable(File encoded, int symbolWidth) throws IOException {
+        if(!encoded.exists()){
+            return null;
         }
-        else{
-            //recursive
-            if(curr.c.length() > 1){
-                //this is a parent node, write 0
-                buffer.writeBit(false);
+        RandomAccessFile raf = new RandomAccessFile(encoded, "r");
+        try{
+            long end = raf.length();
+            while(end >= FRAME_BITS / 8){
+                //walk back one frame
+                raf.seek(end - 8);
+                long start = end - raf.readLong();
+                if(start < 0 || start >= end){
+                    return null;
+                }
+                raf.seek(start);
+                if(raf.readInt() != FRAME_MAGIC){
+                    return null;
+                }
+                if((raf.readByte() & INHERIT_FRAME) != 0){
+                    //this frame has no table either, keep going back
+                    end = start;
+                    continue;
+                }
+                BitBuffer in = new BitBuffer(new FileInputStream(raf.getFD()));
+                try{
+                    int frameWidth = in.readByte() & 0xFF;
+                    in.readByte();
+                    in.readLong();
+                    int flags = in.readByte() & 0xFF;
+                    long count = in.readLong();
+                    if((flags & FILTER_FLAG) != 0){
+                        //filter of the region, the table stands on its own
+                        in.readByte();
+                    }
+                    if(frameWidth != symbolWidth || count == 0 || (flags & (SHARED_FLAG | INHERIT_FLAG)) != 0){
+                        //table is not in the file or does not fit
+                        return null;
+                    }
+                    int escape = -1;
+                    if((flags & ESCAPE_FLAG) != 0){
+                        escape = 0;
+                        for(int i = 0; i < frameWidth; i++){
+                            escape = (escape << 8) | (in.readByte() & 0xFF);
+                        }
+                    }
+                    return new CodeTable(CodeTable.readTree(in, frameWidth), frameWidth, escape);
+                }
+                finally{
+                    in.close();
+                }
             }
-            else{
-                //leaf node
-                buffer.writeBit(true);
-                //write letter
-                buffer.writeByte(curr.c.getBytes()[0]);
+            return null;
+        }
+        finally{
+            raf.close();
+        }
+    }
+
+    /**
+     * Counts the input and checks a table can code all of it
+     * @param codes the table to check
+     * @return whether every symbol has a code or can be escaped, and
+     * the escape symbol itself does not occur
+     * @throws IOException
+     */
+    private boolean covers(CodeTable codes) throws IOException {
+        mapFile(openInput(), data);
+        int escape = codes.getEscape();
+        for(int i = 0; i < data.length; i++){
+            boolean uncoded = !codes.hasCode(i) && escape < 0;
+            if(data[i] > 0 && (uncoded || i == escape)){
+                //symbol can not be written with this table
+                Arrays.fill(data, 0);
+                return false;
             }
-            writeTree(curr.left, buffer);
-            writeTree(curr.right, buffer);
         }
+        return true;
+    }
+
+    /**
+     * Writes one region: its header, the filter of the region if it has
+     * one, the tree of the current table
+     * (left out for a shared or inherited table, or an empty region),
+     * the codes of the next count symbols, padded to a whole byte, and
+     * the CRC32C of the bytes the symbols came from
+     * @param input the padded input to be coded
+     * @param outBuffer the output buffer
+     * @param count the number of symbols in the region
+     * @param countData whether to count the histogram while coding
+     * @return the number of bits written
+     * @throws IOException
+     */
+    private long writeRegion(InputStream input, BitBuffer outBuffer, long count, boolean countData) throws IOException {
+        boolean shared = table == options.getSharedTable() || table == inherited;
+        int flags = table.getEscape() >= 0 ? ESCAPE_FLAG : 0;
+        flags |= table == options.getSharedTable() ? SHARED_FLAG : 0;
+        flags |= table == inherited ? INHERIT_FLAG : 0;
+        flags |= filter != PreFilter.NONE ? FILTER_FLAG : 0;
+        outBuffer.writeByte((byte) flags);
+        outBuffer.writeLong(count);
+        long bits = REGION_HEADER_BITS;
+        if(filter != PreFilter.NONE){
+            //the decoder turns every block back with it
+            outBuffer.writeByte((byte) filter);
+            bits += 8;
+        }
+        if(table.getEscape() >= 0){
+            //symbol whose leaf stands for escapes
+            table.writeSymbol(table.getEscape(), outBuffer);
+            bits += 8 * width;
+        }
+        if(!shared && count > 0){
+            //tree travels with the region
+            CodecMetrics.Phase phase = CodecMetrics.begin("writeTree");
+            table.writeTree(outBuffer);
+            bits += table.treeBits();
+            phase.end(table.treeBits() / 8);
+        }
+        CodecMetrics.Phase phase = CodecMetrics.begin("writeGiven");
+        crc.reset();
+        bits += writeGiven(input, outBuffer, count, countData);
+        phase.end(count * width);
+        outBuffer.alignWrite();
+        outBuffer.writeInt((int) crc.getValue());
+        return (bits + 7) / 8 * 8;
+    }
+
+    /**
+     * Counts the bits writeRegion would write for a histogram
+     * @param codes the table the region is coded with
+     * @param counts the histogram of the region
+     * @return the number of bits, padding included
+     */
+    private long regionBits(CodeTable codes, long[] counts) {
+        long bits = REGION_HEADER_BITS + codes.treeBits() + codes.encodedBits(counts);
+        if(codes.getEscape() >= 0){
+            bits += 8 * width;
+        }
+        return (bits + 7) / 8 * 8;
     }
 
     /**
-     * Writes the message using the encodings of the huffman tree
+     * Writes the message using the encodings of the huffman tree. With a
+     * filter, each block of the region is filtered after it is checked.
+     * @param inputBuffer the padded input to be coded
      * @param outBuffer the output stream for the output file
+     * @param count the number of symbols to code
+     * @param countData whether to count the histogram while coding
+     * @return the number of bits written
      * @throws IOException
      */
-    private void writeGiven(BitBuffer outBuffer) throws IOException{
-        FileInputStream fis = new FileInputStream(txt);
-        BufferedInputStream inputBuffer = new BufferedInputStream(fis);
-        int output = inputBuffer.read();
-        char letter = (char) output;
-        while(output >= 0){
-            //until end of file
-            //Need to get the steps taken along the tree and write each
-            //step as a bit
-            ArrayList<Boolean> steps = encodings.get(letter);
-            for(boolean step : steps){
-                //for every step in the tree
-                outBuffer.writeBit(step);
+    private long writeGiven(InputStream inputBuffer, BitBuffer outBuffer, long count, boolean countData) throws IOException{
+        long bits = 0;
+        byte[] block = new byte[(int) Math.min(count, STRIDE_BLOCK) * width];
+        byte[] coded = filter != PreFilter.NONE ? new byte[block.length] : block;
+        boolean paired = options.isPairCodes() && count >= PAIR_MIN;
+        for(long left = count; left > 0; ){
+            //a block of symbols at a time
+            int symbols = (int) Math.min(left, STRIDE_BLOCK);
+            if(inputBuffer.readNBytes(block, 0, symbols * width) < symbols * width){
+                throw new IOException("Input ended early!");
+            }
+            if(countData){
+                CompressionEstimate.countSymbols(block, 0, symbols * width, width, data);
+            }
+            //checksum of the original bytes, padding left out
+            int real = (int) Math.min(symbols * width, length - checked);
+            crc.update(block, 0, real);
+            checked += real;
+            if(filter != PreFilter.NONE){
+                //blocks start where the segments did
+                PreFilter.apply(filter, block, symbols * width, coded);
             }
-            output = inputBuffer.read();
-            letter = (char) output;
+            if(paired){
+                bits += table.writePairs(coded, 0, symbols, outBuffer);
+            }
+            else{
+                bits += table.writeCodes(coded, 0, symbols, outBuffer);
+            }
+            left -= symbols;
         }
+        return bits;
+    }
 
-        inputBuffer.close();
+    /**
+     * @return the symbol histogram of the whole file, padded last symbol
+     * included, for use with CompressionEstimate
+     */
+    public long[] getHistogram() {
+        return data;
+    }
+
+    /**
+     * @return the number of bits written, header and tree included
+     */
+    public long getEncodedBits() {
+        return encodedBits;
+    }
+
+    /**
+     * @return the number of bits a tree built from a full counting
+     * pass would have written
+     */
+    public long getFullPassBits() {
+        return fullPassBits;
     }
-}
 
+    /**
+     * @return how much larger the output is than a full pass tree
+     * would have made it, as a fraction: 0.03 -> 3% larger
+     */
+    public double getRatioLoss() {
+        if(fullPassBits == 0){
+            return 0;
+        }
+        return (double) (encodedBits - fullPassBits) / fullPassBits;
+    }
+}
@@ -0,0 +1,454 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A compression server on a TCP or Unix domain socket. A single
+ * selector thread does the reading and writing, the coding runs on a
+ * pool of workers. A request is an op byte, a 4 byte length and the
+ * payload; a reply is a status byte, a 4 byte length and the result.
+ * Clients may send several requests without waiting, replies come back
+ * in the same order. A connection is not read from while too many of
+ * its requests are being coded or waiting to be sent.
+ */
+public class HuffmanServer implements Runnable {
+    public static final int ENCODE = 1;
+    public static final int DECODE = 2;
+    public static final int OK = 0;
+    public static final int ERROR = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_PAYLOAD = 1 << 26;
+    private static final long HIGH_WATER = 1 << 22;
+    private static final long LOW_WATER = 1 << 20;
+    private EncodeOptions options;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private ExecutorService workers;
+    private boolean ownsWorkers;
+    //connections a worker finished a reply for
+    private ConcurrentLinkedQueue<SelectionKey> ready;
+    private volatile boolean running;
+
+    /**
+     * The state of one client connection
+     */
+    private static class Connection {
+        private ByteBuffer in;
+        private int op;
+        private byte[] payload;
+        private int filled;
+        private ArrayDeque<Job> coding;
+        private ArrayDeque<ByteBuffer> out;
+        //bytes being coded or waiting to be sent
+        private long pending;
+        private boolean paused;
+
+        private Connection(ByteBuffer buffer) {
+            in = buffer;
+            coding = new ArrayDeque<>();
+            out = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * A request handed to the workers
+     */
+    private static class Job {
+        private CompletableFuture<ByteBuffer> reply;
+        private int size;
+    }
+
+    /**
+     * Binds a server to a TCP or Unix domain socket address, coding on
+     * a worker per processor
+     * @param address where to listen, an InetSocketAddress or a UnixDomainSocketAddress
+     * @param opts the options payloads are coded with, a shared table
+     *             in them is used for decoding as well
+     * @throws IOException
+     */
+    public HuffmanServer(SocketAddress address, EncodeOptions opts) throws IOException {
+        this(address, opts, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "huffman-worker");
+            t.setDaemon(true);
+            return t;
+        }));
+        ownsWorkers = true;
+    }
+
+    /**
+     * Binds a server to a TCP or Unix domain socket address
+     * @param address where to listen, an InetSocketAddress or a UnixDomainSocketAddress
+     * @param opts the options payloads are coded with, a shared table
+     *             in them is used for decoding as well
+     * @param exec runs the coding, left running by close()
+     * @throws IOException
+     */
+    public HuffmanServer(SocketAddress address, EncodeOptions opts, ExecutorService exec) throws IOException {
+        options = opts;
+        workers = exec;
+        ready = new ConcurrentLinkedQueue<>();
+        selector = Selector.open();
+        if(address instanceof UnixDomainSocketAddress){
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        }
+        else{
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @return the address the server is listening on
+     * @throws IOException
+     */
+    public SocketAddress getLocalAddress() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    /**
+     * Starts the event loop on a thread of its own
+     * @return the thread running the loop
+     */
+    public Thread start() {
+        Thread loop = new Thread(this, "huffman-server");
+        loop.setDaemon(true);
+        loop.start();
+        return loop;
+    }
+
+    /**
+     * Runs the event loop until close() is called
+     */
+    @Override
+    public void run() {
+        running = true;
+        try{
+            while(running){
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    //for every channel that is ready
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try{
+                        if(key.isValid() && key.isAcceptable()){
+                            accept();
+                        }
+                        if(key.isValid() && key.isReadable()){
+                            read(key);
+                        }
+                        if(key.isValid() && key.isWritable()){
+                            write(key);
+                        }
+                    }
+                    catch(IOException | RuntimeException e){
+                        //drop the client, keep serving the others
+                        drop(key);
+                    }
+                }
+                SelectionKey key;
+                while((key = ready.poll()) != null){
+                    //for every connection a worker finished a reply for
+                    try{
+                        if(key.isValid()){
+                            collect(key);
+                        }
+                    }
+                    catch(IOException | RuntimeException e){
+                        drop(key);
+                    }
+                }
+            }
+        }
+        catch(IOException e){
+            e.printStackTrace();
+        }
+        finally{
+            for(SelectionKey key : selector.keys()){
+                drop(key);
+            }
+            try{
+                selector.close();
+            }
+            catch(IOException e){
+                e.printStackTrace();
+            }
+            if(ownsWorkers){
+                workers.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Stops the event loop and closes every connection
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = server.accept();
+        if(client == null){
+            return;
+        }
+        client.configureBlocking(false);
+        client.register(selector, SelectionKey.OP_READ, new Connection(BufferPool.shared().acquire(BUFFER_SIZE)));
+    }
+
+    /**
+     * Reads what the client sent and answers every whole request in it
+     * @param key the key of the client
+     * @throws IOException
+     */
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection conn = (Connection) key.attachment();
+        if(client.read(conn.in) < 0){
+            //client hung up
+            drop(key);
+            return;
+        }
+        process(key, conn);
+    }
+
+    /**
+     * Hands the requests buffered for a connection to the workers until
+     * the buffer runs dry or too many replies are waiting
+     * @param key the key of the client
+     * @param conn the state of the client
+     * @throws IOException
+     */
+    private void process(SelectionKey key, Connection conn) throws IOException {
+        conn.in.flip();
+        while(conn.pending < HIGH_WATER){
+            if(conn.payload == null){
+                //waiting for a request header
+                if(conn.in.remaining() < HEADER_SIZE){
+                    break;
+                }
+                conn.op = conn.in.get();
+                int length = conn.in.getInt();
+                if(length < 0 || length > MAX_PAYLOAD){
+                    throw new IOException("Payload of " + length + " bytes is too large!");
+                }
+                conn.payload = new byte[length];
+                conn.filled = 0;
+            }
+            int count = Math.min(conn.in.remaining(), conn.payload.length - conn.filled);
+            conn.in.get(conn.payload, conn.filled, count);
+            conn.filled += count;
+            if(conn.filled < conn.payload.length){
+                //rest of the payload has not arrived
+                break;
+            }
+            submit(key, conn, conn.op, conn.payload);
+            conn.payload = null;
+        }
+        conn.in.compact();
+
+        conn.paused = conn.pending >= HIGH_WATER;
+        interest(key, conn);
+    }
+
+    /**
+     * Codes a request on a worker, the selector is woken once the reply
+     * is ready
+     * @param key the key of the client
+     * @param conn the state of the client
+     * @param op ENCODE or DECODE
+     * @param payload the bytes sent
+     */
+    private void submit(SelectionKey key, Connection conn, int op, byte[] payload) {
+        Job job = new Job();
+        job.size = payload.length;
+        job.reply = CompletableFuture.supplyAsync(() -> handle(op, payload), workers);
+        conn.coding.add(job);
+        conn.pending += job.size;
+        job.reply.whenComplete((reply, e) -> {
+            ready.add(key);
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * Moves the replies the workers are done with to the send queue, in
+     * the order their requests came in
+     * @param key the key of the client
+     * @throws IOException
+     */
+    private void collect(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        while(!conn.coding.isEmpty() && conn.coding.peek().reply.isDone()){
+            //for every finished reply, up to the first one still coding
+            Job job = conn.coding.poll();
+            conn.pending -= job.size;
+            reply(conn, job.reply.join());
+        }
+        interest(key, conn);
+    }
+
+    /**
+     * Reads while few enough replies are waiting, and writes while any are
+     * @param key the key of the client
+     * @param conn the state of the client
+     */
+    private void interest(SelectionKey key, Connection conn) {
+        int ops = conn.paused ? 0 : SelectionKey.OP_READ;
+        if(!conn.out.isEmpty()){
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Sends as much of the waiting replies as the socket takes, and
+     * starts reading again once few enough are left
+     * @param key the key of the client
+     * @throws IOException
+     */
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection conn = (Connection) key.attachment();
+        while(!conn.out.isEmpty()){
+            ByteBuffer head = conn.out.peek();
+            conn.pending -= client.write(head);
+            if(head.hasRemaining()){
+                //socket is full
+                break;
+            }
+            conn.out.poll();
+        }
+        if(conn.paused && conn.pending < LOW_WATER){
+            //caught up, answer what is still buffered
+            process(key, conn);
+        }
+        else{
+            interest(key, conn);
+        }
+    }
+
+    /**
+     * Codes or decodes one payload, on a worker. Whatever goes wrong is
+     * sent back as an ERROR reply.
+     * @param op ENCODE or DECODE
+     * @param payload the bytes sent
+     * @return the reply, status byte included
+     */
+    private ByteBuffer handle(int op, byte[] payload) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(payload.length + 64);
+        int status = OK;
+        try{
+            if(op == ENCODE){
+                HuffmanEncoder encoder = new HuffmanEncoder(payload, result, options);
+                if(encoder.getFailure() != null){
+                    status = ERROR;
+                }
+            }
+            else if(op == DECODE){
+                HuffmanDecoder decoder = new HuffmanDecoder(new ByteArrayInputStream(payload), result, options.getSharedTable(), MAX_PAYLOAD);
+                if(decoder.getFailure() != null){
+                    //damaged payload, nothing decoded is sent back
+                    status = ERROR;
+                }
+            }
+            else{
+                status = ERROR;
+            }
+        }
+        catch(Throwable e){
+            //a bad request costs its own reply, not the server
+            e.printStackTrace();
+            status = ERROR;
+        }
+        if(status != OK){
+            result.reset();
+        }
+        ByteBuffer reply = ByteBuffer.allocate(HEADER_SIZE + result.size());
+        reply.put((byte) status);
+        reply.putInt(result.size());
+        reply.put(result.toByteArray());
+        reply.flip();
+        return reply;
+    }
+
+    private void reply(Connection conn, ByteBuffer reply) {
+        conn.out.add(reply);
+        conn.pending += reply.remaining();
+    }
+
+    private void drop(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        if(conn != null && conn.in != null){
+            BufferPool.shared().release(conn.in);
+            conn.in = null;
+        }
+        key.cancel();
+        try{
+            key.channel().close();
+        }
+        catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends one request and waits for its reply
+     * @param address the address of the server
+     * @param op ENCODE or DECODE
+     * @param payload the bytes to send
+     * @return the result bytes of the reply
+     * @throws IOException if the server reported an error
+     */
+    public static byte[] send(SocketAddress address, int op, byte[] payload) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        try{
+            ByteBuffer request = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            request.put((byte) op);
+            request.putInt(payload.length);
+            request.put(payload);
+            request.flip();
+            while(request.hasRemaining()){
+                channel.write(request);
+            }
+            ByteBuffer header = readFully(channel, HEADER_SIZE);
+            int status = header.get();
+            ByteBuffer body = readFully(channel, header.getInt());
+            if(status != OK){
+                throw new IOException("Server could not handle op " + op + "!");
+            }
+            return body.array();
+        }
+        finally{
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                throw new IOException("Server hung up!");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -1,14 +1,14 @@
 public class LetterData implements Comparable<LetterData> {
     protected String c;
-    protected int frequency;
+    protected long frequency;
     protected LetterData left;
     protected LetterData right;
 
-    public LetterData(String letter, int freq) {
+    public LetterData(String letter, long freq) {
         this(null, letter, freq, null);
     }
 
-    public LetterData(LetterData l, String letter, int freq, LetterData r) {
+    public LetterData(LetterData l, String letter, long freq, LetterData r) {
         left = l;
         c = letter;
         frequency = freq;
@@ -20,7 +20,7 @@ public class LetterData implements Comparable<LetterData> {
 
     @Override
     public int compareTo(LetterData o) {
-        return this.frequency - o.frequency;
+        return Long.compare(this.frequency, o.frequency);
     }
 }
 
@@ -0,0 +1,136 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedInputStream extends InputStream {
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long fileSize;
+    private int windowSize;
+
+    /**
+     * Opens a file for reading through memory mapped windows
+     * of the default size (256 MB)
+     * @param f the file to read
+     * @throws IOException
+     */
+    public MappedInputStream(File f) throws IOException {
+        this(f, 1 << 28);
+    }
+
+    /**
+     * Opens a file for reading through memory mapped windows. A
+     * single MappedByteBuffer can not cover more than 2 GB, so the
+     * file is walked one window at a time and each window is
+     * mapped when the previous one runs out.
+     * @param f the file to read
+     * @param size the number of bytes mapped at once
+     * @throws IOException
+     */
+    public MappedInputStream(File f, int size) throws IOException {
+        if(size <= 0){
+            throw new IllegalArgumentException("Window size must be positive!");
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        channel = raf.getChannel();
+        fileSize = channel.size();
+        windowSize = size;
+        windowStart = 0;
+        mapWindow(0);
+    }
+
+    /**
+     * Maps the window beginning at the given position of the file
+     * @param start the file position the window begins at
+     * @throws IOException
+     */
+    private void mapWindow(long start) throws IOException {
+        long length = Math.min(windowSize, fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        windowStart = start;
+    }
+
+    /**
+     * Slides to the next window once the current one is used up
+     * @return false if the end of the file is reached
+     * @throws IOException
+     */
+    private boolean advance() throws IOException {
+        if(window.hasRemaining()){
+            //still bytes in this window
+            return true;
+        }
+        long next = windowStart + window.capacity();
+        if(next >= fileSize){
+            //end of file
+            return false;
+        }
+        mapWindow(next);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!advance()){
+            return -1;
+        }
+        return window.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0){
+            return 0;
+        }
+        if(!advance()){
+            return -1;
+        }
+        int count = Math.min(len, window.remaining());
+        window.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long pos = position();
+        long target = Math.min(fileSize, pos + Math.max(0, n));
+        if(target - windowStart < window.capacity()){
+            //target is inside the current window
+            window.position((int) (target - windowStart));
+        }
+        else{
+            //jump straight to the window holding the target
+            mapWindow(target);
+        }
+        return target - pos;
+    }
+
+    @Override
+    public int available() {
+        return window.remaining();
+    }
+
+    /**
+     * @return the position of the next byte to be read
+     */
+    public long position() {
+        return windowStart + window.position();
+    }
+
+    /**
+     * @return the length of the mapped file
+     */
+    public long length() {
+        return fileSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
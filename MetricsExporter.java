@@ -0,0 +1,18 @@
+/**
+ * Receives a snapshot of every metric in CodecMetrics
+ */
+public interface MetricsExporter {
+    /**
+     * Called once for every counter
+     * @param name the name of the counter
+     * @param value the current value of the counter
+     */
+    void counter(String name, long value);
+
+    /**
+     * Called once for every histogram
+     * @param name the name of the histogram
+     * @param histogram the histogram, still being recorded into
+     */
+    void histogram(String name, CodecMetrics.Histogram histogram);
+}
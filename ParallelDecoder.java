@@ -0,0 +1,442 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Decodes a single coded file on several threads, without any index
+ * written for it. The codes of a frame are cut into chunks and every
+ * chunk is decoded from its first bit as if a code started there. The
+ * guess is usually wrong, but Huffman codes fall back into step after a
+ * few symbols. Once the chunk before it runs into a point where the
+ * chunk also had a symbol start, everything the chunk decoded from there
+ * on is right. Chunks are stitched together at those points, and the few
+ * symbols before them are decoded again.
+ *
+ * Frames coded as more than one region are decoded on one thread, as
+ * only the first region's start is known, and so are filtered ones.
+ */
+public class ParallelDecoder {
+    private static final int FRAME_MAGIC = 0x48554646; //"HUFF"
+    private static final int INHERIT_FRAME = 0x1;
+    private static final int SHARED_FLAG = 0x2;
+    private static final int ESCAPE_FLAG = 0x1;
+    private static final int INHERIT_FLAG = 0x4;
+    private static final int FILTER_FLAG = 0x8;
+    private static final long MIN_CHUNK_BITS = 8L << 20;
+    private static final int SYNC_WINDOW = 1 << 12;
+    private int threads;
+    private CodeTable shared;
+    private long chunks;
+    private long redecoded;
+    private long serialFrames;
+
+    /**
+     * The part of a frame one thread decodes
+     */
+    private static class Chunk {
+        private byte[] bytes;
+        private LetterData root;
+        private int escape;
+        private int width;
+        private long end;
+        private long limit;
+        private long pos;
+        private long[] starts;
+        private char[] symbols;
+        private int size;
+
+        /**
+         * @param in the bytes of the frame
+         * @param tree the tree of the frame
+         * @param escapeSymbol the symbol standing for escapes, -1 if none
+         * @param symbolWidth the number of bytes per symbol
+         * @param from the bit to start decoding at
+         * @param to symbols starting before this bit belong to the chunk
+         * @param codesEnd the bit the codes of the frame end at
+         */
+        private Chunk(byte[] in, LetterData tree, int escapeSymbol, int symbolWidth, long from, long to, long codesEnd) {
+            bytes = in;
+            root = tree;
+            escape = escapeSymbol;
+            width = symbolWidth;
+            pos = from;
+            end = to;
+            limit = codesEnd;
+            starts = new long[SYNC_WINDOW];
+            symbols = new char[1024];
+            size = 0;
+        }
+
+        /**
+         * Decodes every symbol starting inside the chunk
+         * @param most the most symbols to decode
+         */
+        private void decode(long most) {
+            while(pos < end && size < most && step()){
+                //until the next chunk starts
+            }
+        }
+
+        /**
+         * Decodes the symbol at pos
+         * @return false if the codes ran out first
+         */
+        private boolean step() {
+            long at = pos;
+            LetterData curr = root;
+            while(curr.left != null || curr.right != null){
+                //down the tree, 0 to go left
+                if(pos >= limit){
+                    return false;
+                }
+                curr = bit(pos++) ? curr.right : curr.left;
+            }
+            char letter = curr.c.charAt(0);
+            if(letter == escape){
+                //raw symbol follows
+                if(pos + 8L * width > limit){
+                    return false;
+                }
+                letter = 0;
+                for(int i = 0; i < 8 * width; i++){
+                    letter = (char) ((letter << 1) | (bit(pos++) ? 1 : 0));
+                }
+            }
+            if(size < SYNC_WINDOW){
+                starts[size] = at;
+            }
+            if(size == symbols.length){
+                symbols = Arrays.copyOf(symbols, size * 2);
+            }
+            symbols[size++] = letter;
+            return true;
+        }
+
+        private boolean bit(long at) {
+            return ((bytes[(int) (at >>> 3)] >> (7 - (at & 7))) & 1) != 0;
+        }
+
+        /**
+         * @param at a bit position
+         * @return the index of the symbol the chunk started at that bit,
+         * -1 if none did, or -2 if the chunk's recorded starts ran out first
+         */
+        private int indexOf(long at) {
+            int recorded = Math.min(size, SYNC_WINDOW);
+            int i = Arrays.binarySearch(starts, 0, recorded, at);
+            if(i >= 0){
+                return i;
+            }
+            return recorded < size && -i - 1 == recorded ? -2 : -1;
+        }
+    }
+
+    /**
+     * Creates a decoder
+     * @param threadCount the number of threads to decode with
+     * @param table the table files were coded with if they were coded
+     *              with a shared table, otherwise null
+     */
+    public ParallelDecoder(int threadCount, CodeTable table) {
+        if(threadCount <= 0){
+            throw new IllegalArgumentException("Thread count must be positive!");
+        }
+        threads = threadCount;
+        shared = table;
+    }
+
+    /**
+     * Decodes every frame of a coded file
+     * @param in the file to be decoded
+     * @param out the file to write the decoded result to
+     * @throws IOException if the file is damaged
+     */
+    public void decode(File in, File out) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        RandomAccessFile raf = new RandomAccessFile(in, "r");
+        OutputStream output = new FileOutputStream(out);
+        CodecMetrics.Phase phase = CodecMetrics.begin("decodeParallel");
+        long written = 0;
+        try{
+            LetterData inherited = null;
+            for(long[] frame : frames(raf)){
+                //for every frame, in order
+                if(frame[1] - frame[0] > Integer.MAX_VALUE - 8){
+                    throw new IOException("Frame of " + (frame[1] - frame[0]) + " bytes is too large!");
+                }
+                byte[] bytes = new byte[(int) (frame[1] - frame[0])];
+                raf.seek(frame[0]);
+                raf.readFully(bytes);
+                LetterData[] inherit = new LetterData[]{inherited};
+                byte[] decoded = decodeFrame(bytes, inherit, pool);
+                inherited = inherit[0];
+                output.write(decoded);
+                written += decoded.length;
+            }
+        }
+        finally{
+            pool.shutdown();
+            raf.close();
+            output.close();
+            phase.end(written);
+        }
+    }
+
+    /**
+     * Finds every frame of a file by walking back through their trailers
+     * @param raf the coded file
+     * @return the start and end of every frame, in order
+     * @throws IOException if the file is not made of frames
+     */
+    private static List<long[]> frames(RandomAccessFile raf) throws IOException {
+        List<long[]> frames = new ArrayList<>();
+        long end = raf.length();
+        while(end > 0){
+            //walk back one frame
+            raf.seek(end - 8);
+            long start = end - raf.readLong();
+            if(start < 0 || start >= end){
+                throw new IOException("File is not made of Huffman coded frames!");
+            }
+            frames.add(0, new long[]{start, end});
+            end = start;
+        }
+        return frames;
+    }
+
+    /**
+     * Decodes one frame
+     * @param bytes the frame, trailer included
+     * @param inherit holds the tree inherited frames use, updated by this frame
+     * @param pool the threads to decode with
+     * @return the decoded bytes
+     * @throws IOException if the frame is damaged
+     */
+    private byte[] decodeFrame(byte[] bytes, LetterData[] inherit, ExecutorService pool) throws IOException {
+        BitBuffer header = new BitBuffer(new ByteArrayInputStream(bytes));
+        int frameFlags;
+        int width;
+        int pad;
+        long length;
+        long symbols;
+        int flags;
+        long count;
+        int escape = -1;
+        LetterData tree;
+        long codesStart;
+        try{
+            if(header.readInt() != FRAME_MAGIC){
+                throw new IOException("Input is not a Huffman coded frame!");
+            }
+            frameFlags = header.readByte() & 0xFF;
+            width = header.readByte() & 0xFF;
+            pad = header.readByte() & 0xFF;
+            length = header.readLong();
+            if(width == 0 || length < 0 || (length + pad) % width != 0 || length + pad > Integer.MAX_VALUE - 8){
+                throw new IOException("Frame header is damaged or too large!");
+            }
+            symbols = (length + pad) / width;
+            flags = header.readByte() & 0xFF;
+            count = header.readLong();
+            if((flags & FILTER_FLAG) != 0){
+                //filter of the region, read with it below
+                header.readByte();
+            }
+            if((flags & ESCAPE_FLAG) != 0){
+                escape = 0;
+                for(int i = 0; i < width; i++){
+                    escape = (escape << 8) | (header.readByte() & 0xFF);
+                }
+            }
+            if(count == 0){
+                tree = null;
+            }
+            else if((flags & INHERIT_FLAG) != 0){
+                tree = inherit[0];
+            }
+            else if((flags & SHARED_FLAG) != 0){
+                tree = shared != null && shared.getWidth() == width ? shared.getRoot() : null;
+            }
+            else{
+                tree = CodeTable.readTree(header, width);
+            }
+            codesStart = header.bitsRead();
+        }
+        finally{
+            header.close();
+        }
+        if((frameFlags & INHERIT_FRAME) == 0){
+            //table later frames may inherit
+            inherit[0] = tree;
+        }
+        if(count != symbols || tree == null || (flags & FILTER_FLAG) != 0){
+            //several regions, a filtered region or nothing to decode
+            serialFrames++;
+            ByteBuffer decoded = ByteBuffer.allocate((int) length);
+            HuffmanDecoder decoder = new HuffmanDecoder(new ByteArrayInputStream(bytes), decoded, shared);
+            if(decoder.getFailure() != null){
+                throw decoder.getFailure();
+            }
+            if(decoded.position() != length){
+                throw new IOException("Frame could not be decoded!");
+            }
+            return decoded.array();
+        }
+
+        //the region's checksum and the frame trailer follow the codes
+        long codesEnd = (bytes.length - 12) * 8L;
+        char[] letters;
+        if(tree.left == null && tree.right == null && tree.c.charAt(0) != escape){
+            //a single symbol, its code has no bits
+            letters = new char[(int) symbols];
+            Arrays.fill(letters, tree.c.charAt(0));
+        }
+        else{
+            letters = decodeCodes(bytes, tree, escape, width, codesStart, codesEnd, (int) symbols, pool);
+        }
+        byte[] decoded = new byte[(int) (symbols * width)];
+        for(int i = 0; i < letters.length; i++){
+            //for every symbol, big endian
+            for(int j = 0; j < width; j++){
+                decoded[i * width + j] = (byte) (letters[i] >> (8 * (width - 1 - j)));
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(decoded, 0, (int) length);
+        if(ByteBuffer.wrap(bytes, bytes.length - 12, 4).getInt() != (int) crc.getValue()){
+            throw new IOException("Frame of " + length + " bytes is damaged!");
+        }
+        return Arrays.copyOf(decoded, (int) length);
+    }
+
+    /**
+     * Decodes the codes of a single region frame in chunks and stitches
+     * the chunks together
+     * @param bytes the frame
+     * @param tree the tree of the frame
+     * @param escape the symbol standing for escapes, -1 if none
+     * @param width the number of bytes per symbol
+     * @param codesStart the bit the codes start at
+     * @param codesEnd the bit the codes end at, padding included
+     * @param symbols the number of symbols in the frame
+     * @param pool the threads to decode with
+     * @return the symbols
+     * @throws IOException if the codes are damaged
+     */
+    private char[] decodeCodes(byte[] bytes, LetterData tree, int escape, int width, long codesStart, long codesEnd,
+                               int symbols, ExecutorService pool) throws IOException {
+        long bits = codesEnd - codesStart;
+        int parts = (int) Math.max(1, Math.min(threads, bits / MIN_CHUNK_BITS));
+        long chunkBits = (bits + parts - 1) / parts;
+        Chunk[] chunk = new Chunk[parts];
+        List<Future<Object>> jobs = new ArrayList<>();
+        for(int k = 0; k < parts; k++){
+            //each chunk guesses a code starts at its first bit
+            long from = codesStart + k * chunkBits;
+            Chunk c = new Chunk(bytes, tree, escape, width, from, Math.min(codesEnd, from + chunkBits), codesEnd);
+            chunk[k] = c;
+            jobs.add(pool.submit(() -> {
+                c.decode(symbols);
+                return null;
+            }));
+        }
+        try{
+            for(Future<Object> job : jobs){
+                job.get();
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Decoding was interrupted!", e);
+        }
+        catch(ExecutionException e){
+            throw new IOException("Could not decode a chunk!", e.getCause());
+        }
+        chunks += parts;
+
+        char[] letters = new char[symbols];
+        int filled = copy(chunk[0], 0, letters, 0);
+        long pos = chunk[0].pos;
+        for(int k = 1; k < parts && filled < symbols; k++){
+            //for every chunk after the first, find where it fell into step
+            Chunk c = chunk[k];
+            if(pos >= c.end){
+                //chunk was decoded again as part of the one before
+                continue;
+            }
+            Chunk again = new Chunk(bytes, tree, escape, width, pos, c.end, codesEnd);
+            int at = c.indexOf(pos);
+            while(at == -1 && again.pos < c.end && again.step()){
+                //decode from the known boundary until it meets the chunk's
+                at = c.indexOf(again.pos);
+            }
+            if(at < 0){
+                //no common start, the chunk is decoded again in full
+                again.decode(symbols);
+            }
+            redecoded += again.size;
+            filled = copy(again, 0, letters, filled);
+            if(at >= 0){
+                //rest of the chunk was decoded right the first time
+                filled = copy(c, at, letters, filled);
+                pos = c.pos;
+            }
+            else{
+                pos = again.pos;
+            }
+        }
+        if(filled < symbols){
+            throw new IOException("Codes ended after " + filled + " of " + symbols + " symbols!");
+        }
+        CodecMetrics.add("decode.parallel.chunks", parts);
+        CodecMetrics.add("decode.parallel.redecoded", redecoded);
+        return letters;
+    }
+
+    /**
+     * Copies the symbols of a chunk, from an index on, as far as they fit
+     * @param c the chunk
+     * @param from the first symbol to copy
+     * @param to the symbols decoded so far
+     * @param filled the number of symbols decoded so far
+     * @return the new number of symbols decoded
+     */
+    private static int copy(Chunk c, int from, char[] to, int filled) {
+        int n = Math.min(c.size - from, to.length - filled);
+        System.arraycopy(c.symbols, from, to, filled, n);
+        return filled + n;
+    }
+
+    /**
+     * @return the number of chunks decoded
+     */
+    public long getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the number of symbols decoded a second time while stitching
+     */
+    public long getRedecoded() {
+        return redecoded;
+    }
+
+    /**
+     * @return the number of frames that had to be decoded on one thread
+     */
+    public long getSerialFrames() {
+        return serialFrames;
+    }
+}
@@ -0,0 +1,526 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32C;
+
+/**
+ * Codes one large file with a single tree on several threads. The file
+ * is cut into ranges, and both passes work on the ranges in parallel:
+ * the counting pass counts every range into its own histogram, and the
+ * histograms are added up into the one the tree is built from. The
+ * range histograms also give the exact number of bits each range codes
+ * to, so every range knows the bit its codes start at before coding.
+ * Ranges are then coded in parallel straight into their place in the
+ * output file, and only the bytes two ranges share are put together
+ * afterwards.
+ *
+ * The result is the same single region frame HuffmanEncoder writes.
+ */
+public class ParallelEncoder {
+    private static final int FRAME_MAGIC = 0x48554646; //"HUFF"
+    private static final int ESCAPE_FLAG = 0x1;
+    private static final int SHARED_FLAG = 0x2;
+    private static final long MIN_RANGE = 16L << 20;
+    private static final int WINDOW_SIZE = 1 << 28;
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int CRC_POLY = 0x82F63B78;
+    private int threads;
+    private EncodeOptions options;
+    private int width;
+    private long encodedBits;
+
+    /**
+     * The part of the file one thread counts and codes
+     */
+    private static class Range {
+        private long start;
+        private long end;
+        private long[] counts;
+        private long bitStart;
+        private long bits;
+        private int crc;
+        private int first;
+        private int last;
+        private long bytes;
+    }
+
+    /**
+     * Counts a run of ranges, splitting it in two until it is one range
+     */
+    private static class CountTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private transient FileChannel in;
+        private transient Range[] ranges;
+        private int width;
+        private int lo;
+        private int hi;
+
+        private CountTask(FileChannel channel, Range[] r, int symbolWidth, int from, int to) {
+            in = channel;
+            ranges = r;
+            width = symbolWidth;
+            lo = from;
+            hi = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if(hi - lo == 1){
+                //one range, counted into its own histogram
+                Range r = ranges[lo];
+                r.counts = new long[1 << (8 * width)];
+                try{
+                    read(in, r, width, (block, length) -> CompressionEstimate.countSymbols(block, 0, whole(length, width), width, r.counts));
+                }
+                catch(IOException e){
+                    throw new UncheckedIOException(e);
+                }
+                return r.counts;
+            }
+            int mid = (lo + hi) >>> 1;
+            CountTask left = new CountTask(in, ranges, width, lo, mid);
+            left.fork();
+            long[] right = new CountTask(in, ranges, width, mid, hi).compute();
+            long[] sum = left.join().clone();
+            for(int i = 0; i < sum.length; i++){
+                sum[i] += right[i];
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Handed the blocks of a range in order
+     */
+    private interface BlockReader {
+        /**
+         * @param block the bytes, followed by zero bytes up to a whole
+         *              symbol at the end of the file
+         * @param length the number of bytes read from the file
+         */
+        void block(byte[] block, int length) throws IOException;
+    }
+
+    /**
+     * Takes the bytes one range codes to, writing them at their place in
+     * the output file. The first and the last byte may be shared with the
+     * ranges on either side, so they are held back instead.
+     */
+    private static class RangeOutput extends OutputStream {
+        private FileChannel out;
+        private long position;
+        private Range range;
+        private int held;
+
+        private RangeOutput(FileChannel channel, long at, Range r) {
+            out = channel;
+            position = at;
+            range = r;
+            held = -1;
+            range.first = -1;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len == 0){
+                return;
+            }
+            if(range.first < 0){
+                //first byte of the range
+                range.first = b[off] & 0xFF;
+                position++;
+                off++;
+                len--;
+                range.bytes++;
+                if(len == 0){
+                    return;
+                }
+            }
+            if(held >= 0){
+                //the byte held back is not the last after all
+                write(ByteBuffer.wrap(new byte[]{(byte) held}));
+            }
+            write(ByteBuffer.wrap(b, off, len - 1));
+            held = b[off + len - 1] & 0xFF;
+            range.bytes += len;
+        }
+
+        private void write(ByteBuffer bytes) throws IOException {
+            while(bytes.hasRemaining()){
+                position += out.write(bytes, position);
+            }
+        }
+
+        @Override
+        public void close() {
+            //last byte, the same as the first for a one byte range
+            range.last = held >= 0 ? held : range.first;
+        }
+    }
+
+    /**
+     * Creates an encoder
+     * @param threadCount the number of threads to code with
+     * @param opts the symbol width, shared table and appending to use;
+     *             sampling, splitting and inheriting are ignored
+     */
+    public ParallelEncoder(int threadCount, EncodeOptions opts) {
+        if(threadCount <= 0){
+            throw new IllegalArgumentException("Thread count must be positive!");
+        }
+        threads = threadCount;
+        options = opts;
+        width = options.getSymbolWidth();
+    }
+
+    /**
+     * Codes a file as one frame. If coding fails, the file is cut back
+     * to the length it had before.
+     * @param given the file to be encoded
+     * @param to the file to write the encoded result to
+     * @throws IOException
+     */
+    public void encode(File given, File to) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        CodecMetrics.Phase phase = CodecMetrics.begin("encodeParallel");
+        FileChannel in = FileChannel.open(given.toPath(), StandardOpenOption.READ);
+        FileChannel out;
+        if(options.isAppend()){
+            out = FileChannel.open(to.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        else{
+            out = FileChannel.open(to.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        long length = in.size();
+        long before = out.size();
+        boolean done = false;
+        try{
+            encode(in, out, length, pool);
+            done = true;
+        }
+        finally{
+            if(!done){
+                //a partial frame would hide the frames before it
+                out.truncate(before);
+            }
+            pool.shutdown();
+            in.close();
+            out.close();
+            phase.end(length);
+        }
+    }
+
+    private void encode(FileChannel in, FileChannel out, long length, ForkJoinPool pool) throws IOException {
+        int pad = (int) ((width - length % width) % width);
+        long symbols = (length + pad) / width;
+        Range[] ranges = split(length);
+
+        //count every range, for the tree and for where its codes start
+        CodecMetrics.Phase counting = CodecMetrics.begin("mapFile");
+        long[] data = new long[1 << (8 * width)];
+        if(ranges.length > 0){
+            data = invoke(pool, new CountTask(in, ranges, width, 0, ranges.length));
+        }
+        counting.end(length);
+        CodeTable table = options.getSharedTable();
+        if(table != null && table.getWidth() != width){
+            throw new IOException("Shared table has a different symbol width!");
+        }
+        if(table == null){
+            table = new CodeTable(data, width);
+        }
+
+        //frame and region header, and the tree
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        BitBuffer headBuff = new BitBuffer(head);
+        long headBits = 120 + 72;
+        try{
+            headBuff.writeInt(FRAME_MAGIC);
+            headBuff.writeByte((byte) 0);
+            headBuff.writeByte((byte) width);
+            headBuff.writeByte((byte) pad);
+            headBuff.writeLong(length);
+            int flags = table.getEscape() >= 0 ? ESCAPE_FLAG : 0;
+            flags |= table == options.getSharedTable() ? SHARED_FLAG : 0;
+            headBuff.writeByte((byte) flags);
+            headBuff.writeLong(symbols);
+            if(table.getEscape() >= 0){
+                table.writeSymbol(table.getEscape(), headBuff);
+                headBits += 8 * width;
+            }
+            if(table != options.getSharedTable() && symbols > 0){
+                table.writeTree(headBuff);
+                headBits += table.treeBits();
+            }
+        }
+        finally{
+            headBuff.close();
+        }
+
+        //where every range starts, from the bits its histogram codes to
+        long bit = headBits;
+        for(Range r : ranges){
+            r.bitStart = bit;
+            try{
+                r.bits = table.encodedBits(r.counts);
+            }
+            catch(IllegalArgumentException e){
+                throw new IOException("Shared table can not code the file!", e);
+            }
+            bit += r.bits;
+            r.counts = null;
+        }
+        long frameStart = options.isAppend() ? out.size() : 0;
+        long codesEnd = (bit + 7) / 8;
+
+        CodecMetrics.Phase coding = CodecMetrics.begin("writeGiven");
+        CodeTable codes = table;
+        List<Future<Object>> jobs = new ArrayList<>();
+        for(Range r : ranges){
+            //every range coded straight into its place
+            jobs.add(pool.submit(() -> {
+                code(in, out, frameStart, r, codes);
+                return null;
+            }));
+        }
+        awaitAll(jobs);
+        coding.end(length);
+
+        //put the shared bytes together
+        Map<Long, Integer> shared = new HashMap<>();
+        byte[] header = head.toByteArray();
+        out.write(ByteBuffer.wrap(header, 0, header.length - 1), frameStart);
+        shared.merge(frameStart + header.length - 1, header[header.length - 1] & 0xFF, (a, b) -> a | b);
+        int crc = 0;
+        for(Range r : ranges){
+            if(r.bytes > 0){
+                long at = frameStart + r.bitStart / 8;
+                shared.merge(at, r.first, (a, b) -> a | b);
+                shared.merge(at + r.bytes - 1, r.last, (a, b) -> a | b);
+            }
+            crc = combine(crc, r.crc, r.end - r.start);
+        }
+        for(Map.Entry<Long, Integer> e : shared.entrySet()){
+            out.write(ByteBuffer.wrap(new byte[]{(byte) (int) e.getValue()}), e.getKey());
+        }
+
+        //checksum of the region and the frame trailer
+        ByteBuffer tail = ByteBuffer.allocate(12);
+        tail.putInt(crc);
+        tail.putLong(codesEnd + 12);
+        tail.flip();
+        long at = frameStart + codesEnd;
+        while(tail.hasRemaining()){
+            at += out.write(tail, at);
+        }
+        encodedBits = (codesEnd + 12) * 8;
+        CodecMetrics.add("encode.runs", 1);
+        CodecMetrics.add("encode.bytes.in", length);
+        CodecMetrics.add("encode.bytes.out", codesEnd + 12);
+    }
+
+    /**
+     * Cuts the file into ranges of whole symbols, a few per thread so
+     * uneven ranges even out, and none smaller than MIN_RANGE
+     * @param length the length of the file
+     * @return the ranges, none for an empty file
+     */
+    private Range[] split(long length) {
+        if(length == 0){
+            return new Range[0];
+        }
+        long count = Math.max(1, Math.min(4L * threads, length / MIN_RANGE));
+        long size = (length + count - 1) / count;
+        size += (width - size % width) % width;
+        List<Range> ranges = new ArrayList<>();
+        for(long start = 0; start < length; start += size){
+            Range r = new Range();
+            r.start = start;
+            r.end = Math.min(length, start + size);
+            ranges.add(r);
+        }
+        return ranges.toArray(new Range[0]);
+    }
+
+    /**
+     * Codes one range with the table, after as many 0 bits as its
+     * start is into its first byte
+     */
+    private void code(FileChannel in, FileChannel out, long frameStart, Range r, CodeTable table) throws IOException {
+        BitBuffer buff = new BitBuffer(new RangeOutput(out, frameStart + r.bitStart / 8, r));
+        CRC32C crc = new CRC32C();
+        try{
+            buff.writeBits(0, (int) (r.bitStart % 8));
+            read(in, r, width, (block, length) -> {
+                crc.update(block, 0, length);
+                if(options.isPairCodes()){
+                    table.writePairs(block, 0, whole(length, width) / width, buff);
+                }
+                else{
+                    table.writeCodes(block, 0, whole(length, width) / width, buff);
+                }
+            });
+        }
+        finally{
+            buff.close();
+        }
+        if(buff.getFailure() != null){
+            throw buff.getFailure();
+        }
+        r.crc = (int) crc.getValue();
+    }
+
+    /**
+     * Reads a range a block at a time through memory mapped windows.
+     * The last range of a file ending in a partial symbol is padded
+     * with zero bytes to a whole one.
+     * @param in the file
+     * @param r the range
+     * @param width the number of bytes per symbol
+     * @param reader handed every block
+     * @throws IOException
+     */
+    private static void read(FileChannel in, Range r, int width, BlockReader reader) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        for(long window = r.start; window < r.end; window += WINDOW_SIZE){
+            //for every window of the range
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, window, Math.min(WINDOW_SIZE, r.end - window));
+            while(map.hasRemaining()){
+                //for every block of the window
+                int n = Math.min(block.length, map.remaining());
+                map.get(block, 0, n);
+                for(int i = n; i < whole(n, width); i++){
+                    //end of the file, padded
+                    block[i] = 0;
+                }
+                reader.block(block, n);
+            }
+        }
+    }
+
+    /**
+     * @param length a number of bytes
+     * @param width the number of bytes per symbol
+     * @return the bytes of the symbols they make, the last one padded
+     */
+    private static int whole(int length, int width) {
+        return length + (width - length % width) % width;
+    }
+
+    private static <T> T invoke(ForkJoinPool pool, RecursiveTask<T> task) throws IOException {
+        try{
+            return pool.invoke(task);
+        }
+        catch(UncheckedIOException e){
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Waits for every job, passing on the first failure
+     * @param jobs the jobs
+     * @throws IOException if a job failed or the wait was interrupted
+     */
+    private static void awaitAll(List<Future<Object>> jobs) throws IOException {
+        try{
+            for(Future<Object> job : jobs){
+                job.get();
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Encoding was interrupted!", e);
+        }
+        catch(ExecutionException e){
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not encode a range!", e.getCause());
+        }
+    }
+
+    /**
+     * Works out the CRC32C of two pieces of data put together from the
+     * CRC32C of each, as zlib's crc32_combine does
+     * @param crc1 the checksum of the first piece
+     * @param crc2 the checksum of the second piece
+     * @param length2 the length of the second piece
+     * @return the checksum of both
+     */
+    private static int combine(int crc1, int crc2, long length2) {
+        if(length2 <= 0){
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        //operator for one zero bit
+        odd[0] = CRC_POLY;
+        for(int n = 1; n < 32; n++){
+            odd[n] = 1 << (n - 1);
+        }
+        square(even, odd);
+        square(odd, even);
+        do{
+            //a zero byte, then doubled, for every bit of the length
+            square(even, odd);
+            if((length2 & 1) != 0){
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if(length2 == 0){
+                break;
+            }
+            square(odd, even);
+            if((length2 & 1) != 0){
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        }
+        while(length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for(int i = 0; vector != 0; i++, vector >>>= 1){
+            if((vector & 1) != 0){
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for(int n = 0; n < 32; n++){
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * @return the number of bits the last file was coded to, padding,
+     * checksum and trailer included
+     */
+    public long getEncodedBits() {
+        return encodedBits;
+    }
+}
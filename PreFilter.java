@@ -0,0 +1,181 @@
+import java.util.Arrays;
+
+/**
+ * Reversible filters run over blocks of the input before they are
+ * counted and coded. Numeric data whose neighbouring values differ by
+ * little codes far better as the differences between them than as
+ * the values themselves.
+ *
+ * A filter is one byte: the kind in the high four bits and the stride,
+ * the size of a value in bytes, in the low four. Every block of
+ * BLOCK_SYMBOLS symbols is filtered on its own, so a block can be
+ * turned back without the bytes before it.
+ */
+public class PreFilter {
+    public static final int NONE = 0x00;
+    //each byte less the byte stride bytes before it
+    public static final int DELTA = 0x1;
+    //each byte xor the byte stride bytes before it, for floats
+    public static final int XOR = 0x2;
+    //the first byte of every value, then the second, and so on
+    public static final int SHUFFLE = 0x3;
+    public static final int BLOCK_SYMBOLS = 1 << 16;
+    //bytes of a block the filters are tried on
+    private static final int SAMPLE_SIZE = 1 << 14;
+    private static final int[] CANDIDATES = {
+        NONE,
+        of(DELTA, 1), of(DELTA, 2), of(DELTA, 4), of(DELTA, 8),
+        of(XOR, 2), of(XOR, 4), of(XOR, 8),
+        of(SHUFFLE, 2), of(SHUFFLE, 4), of(SHUFFLE, 8)
+    };
+    private int width;
+    private byte[] work;
+    private long[] counts;
+
+    /**
+     * Creates a chooser for blocks of symbols of the given width
+     * @param symbolWidth the number of bytes per symbol
+     */
+    public PreFilter(int symbolWidth) {
+        width = symbolWidth;
+        work = new byte[SAMPLE_SIZE];
+        counts = new long[1 << (8 * width)];
+    }
+
+    /**
+     * @param kind DELTA, XOR or SHUFFLE
+     * @param stride the number of bytes per value, 1 to 15
+     * @return the filter byte
+     */
+    public static int of(int kind, int stride) {
+        return (kind << 4) | stride;
+    }
+
+    /**
+     * @param filter a filter byte
+     * @return whether apply and invert know the filter
+     */
+    public static boolean isValid(int filter) {
+        int kind = filter >>> 4;
+        int stride = filter & 0xF;
+        return filter == NONE || (kind >= DELTA && kind <= SHUFFLE && stride > 0);
+    }
+
+    /**
+     * Picks the filter a block is estimated to code smallest with,
+     * trying each on the front of the block
+     * @param block the bytes of the block
+     * @param length the number of bytes, a whole number of symbols
+     * @return the filter byte, NONE if no filter helps
+     */
+    public int choose(byte[] block, int length) {
+        int sample = Math.min(length, SAMPLE_SIZE);
+        sample -= sample % width;
+        if(sample == 0){
+            return NONE;
+        }
+        int best = NONE;
+        double bestCost = 0;
+        for(int filter : CANDIDATES){
+            //for every filter, the cost of the sample scaled up to the block
+            byte[] filtered = block;
+            if(filter != NONE){
+                apply(filter, block, sample, work);
+                filtered = work;
+            }
+            Arrays.fill(counts, 0);
+            CompressionEstimate.countSymbols(filtered, 0, sample, width, counts);
+            double cost = CompressionEstimate.treeAndCodeBits(counts, null, width, (double) length / sample);
+            if(filter == NONE || cost < bestCost){
+                best = filter;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Filters a block
+     * @param filter the filter byte
+     * @param from the bytes of the block
+     * @param length the number of bytes
+     * @param to where the filtered bytes are put, not from
+     */
+    public static void apply(int filter, byte[] from, int length, byte[] to) {
+        int stride = Math.min(filter & 0xF, length);
+        switch(filter >>> 4){
+            case DELTA:
+                System.arraycopy(from, 0, to, 0, stride);
+                for(int i = stride; i < length; i++){
+                    to[i] = (byte) (from[i] - from[i - stride]);
+                }
+                break;
+            case XOR:
+                System.arraycopy(from, 0, to, 0, stride);
+                for(int i = stride; i < length; i++){
+                    to[i] = (byte) (from[i] ^ from[i - stride]);
+                }
+                break;
+            case SHUFFLE:
+                shuffle(from, length, to, stride, false);
+                break;
+            default:
+                System.arraycopy(from, 0, to, 0, length);
+        }
+    }
+
+    /**
+     * Turns a filtered block back into the bytes it was made from
+     * @param filter the filter byte
+     * @param from the filtered bytes
+     * @param length the number of bytes
+     * @param to where the original bytes are put, not from
+     */
+    public static void invert(int filter, byte[] from, int length, byte[] to) {
+        int stride = Math.min(filter & 0xF, length);
+        switch(filter >>> 4){
+            case DELTA:
+                System.arraycopy(from, 0, to, 0, stride);
+                for(int i = stride; i < length; i++){
+                    to[i] = (byte) (from[i] + to[i - stride]);
+                }
+                break;
+            case XOR:
+                System.arraycopy(from, 0, to, 0, stride);
+                for(int i = stride; i < length; i++){
+                    to[i] = (byte) (from[i] ^ to[i - stride]);
+                }
+                break;
+            case SHUFFLE:
+                shuffle(from, length, to, stride, true);
+                break;
+            default:
+                System.arraycopy(from, 0, to, 0, length);
+        }
+    }
+
+    /**
+     * Moves the bytes of whole values into planes, or back out of them.
+     * Bytes after the last whole value stay where they are.
+     */
+    private static void shuffle(byte[] from, int length, byte[] to, int stride, boolean back) {
+        if(length == 0){
+            return;
+        }
+        int values = length / stride;
+        for(int plane = 0; plane < stride; plane++){
+            //for every byte position of a value
+            int base = plane * values;
+            for(int v = 0; v < values; v++){
+                if(back){
+                    to[v * stride + plane] = from[base + v];
+                }
+                else{
+                    to[base + v] = from[v * stride + plane];
+                }
+            }
+        }
+        int tail = values * stride;
+        System.arraycopy(from, tail, to, tail, length - tail);
+    }
+}
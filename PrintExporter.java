@@ -0,0 +1,29 @@
+import java.io.PrintStream;
+
+/**
+ * Writes every metric as a line of text
+ */
+public class PrintExporter implements MetricsExporter {
+    private PrintStream out;
+
+    /**
+     * @param stream where to print the metrics
+     */
+    public PrintExporter(PrintStream stream) {
+        out = stream;
+    }
+
+    @Override
+    public void counter(String name, long value) {
+        out.println(name + " " + value);
+    }
+
+    @Override
+    public void histogram(String name, CodecMetrics.Histogram histogram) {
+        out.println(name + " count=" + histogram.getCount()
+                + " mean=" + histogram.getMean()
+                + " p50=" + histogram.percentile(0.5)
+                + " p99=" + histogram.percentile(0.99)
+                + " max=" + histogram.getMax());
+    }
+}
@@ -0,0 +1,601 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Decodes coded frames from chunks of input handed to it as they
+ * arrive, so a thread reading from a non-blocking channel never waits
+ * inside the decoder. Each push decodes as far as the bytes so far go
+ * and writes out what it decoded. A code cut in two by the end of a
+ * chunk is kept as the state reached part way through it, and headers,
+ * trees and checksums are read once all their bytes are there.
+ *
+ * Output of a filtered region is written a whole block at a time, as a
+ * block can only be turned back once all of it is decoded.
+ *
+ * A decoder holds a pooled buffer until finish() or close(), so one
+ * given up part way through a stream has to be closed.
+ */
+public class PushDecoder implements AutoCloseable {
+    private static final int FRAME_MAGIC = 0x48554646; //"HUFF"
+    private static final int INHERIT_FRAME = 0x1;
+    private static final int ESCAPE_FLAG = 0x1;
+    private static final int SHARED_FLAG = 0x2;
+    private static final int INHERIT_FLAG = 0x4;
+    private static final int FILTER_FLAG = 0x8;
+    private static final int BUFFER_SIZE = 1 << 16;
+    //what the decoder waits for next
+    private static final int FRAME = 0;
+    private static final int REGION = 1;
+    private static final int CODES = 2;
+    private static final int CHECK = 3;
+    private static final int TRAILER = 4;
+    private WritableByteChannel out;
+    private CodeTable shared;
+    private ByteBuffer output;
+    private byte[] input;
+    private int head;
+    private int tail;
+    private long acc;
+    private int accBits;
+    private boolean starved;
+    //bits the first read that starved was short of
+    private int shortBy;
+    private int markHead;
+    private long markAcc;
+    private int markBits;
+    private long treeRetry;
+    private int step;
+    private int frameFlags;
+    private int width;
+    private long length;
+    private long symbols;
+    private long decoded;
+    private long frameWritten;
+    private long written;
+    private long frames;
+    private LetterData inherited;
+    private LetterData root;
+    private int escape;
+    private int filter;
+    private long count;
+    private long done;
+    private ByteDecodeTable stateTable;
+    private ByteDecodeTable fsm;
+    private int state;
+    private LetterData node;
+    private boolean escaping;
+    private byte[] block;
+    private byte[] plain;
+    private int fill;
+    private CRC32C crc = new CRC32C();
+    private IOException failure;
+    private long limit;
+
+    /**
+     * Creates a decoder writing to a channel, which has to take all it
+     * is given on every write, such as a channel over a stream or pipe
+     * @param out the channel to write the decoded result to, left open
+     * @param table the table the input was coded with if it was coded
+     *              with a shared table, otherwise null
+     */
+    public PushDecoder(WritableByteChannel out, CodeTable table) {
+        this(out, table, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a decoder for untrusted input, failing on a frame header
+     * that claims more than a set number of bytes before any of the
+     * frame is decoded. A region of a single symbol costs no input bits
+     * per symbol, so only such a limit bounds what a forged header
+     * decodes to.
+     * @param out the channel to write the decoded result to, left open
+     * @param table the table the input was coded with if it was coded
+     *              with a shared table, otherwise null
+     * @param maxBytes the most bytes the input may decode to
+     */
+    public PushDecoder(WritableByteChannel out, CodeTable table, long maxBytes) {
+        this.out = out;
+        shared = table;
+        limit = maxBytes;
+        output = BufferPool.shared().acquire(BUFFER_SIZE);
+        input = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Takes the next chunk of coded input, all of it, and writes out
+     * everything that can be decoded so far
+     * @param chunk the bytes from its position to its limit
+     * @throws IOException if the input is damaged, or was earlier
+     */
+    public void push(ByteBuffer chunk) throws IOException {
+        if(failure != null){
+            throw failure;
+        }
+        if(output == null){
+            throw new IOException("Decoder is finished already!");
+        }
+        if(head > 0){
+            //bytes read already are not needed any more
+            System.arraycopy(input, head, input, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        if(input.length - tail < chunk.remaining()){
+            byte[] grown = new byte[Math.max(2 * input.length, tail + chunk.remaining())];
+            System.arraycopy(input, 0, grown, 0, tail);
+            input = grown;
+        }
+        int n = chunk.remaining();
+        chunk.get(input, tail, n);
+        tail += n;
+        try{
+            while(advance()){
+                //until the input runs out
+            }
+            if(filter == PreFilter.NONE && fill > 0){
+                //symbols decoded so far go out now
+                finishBlock();
+            }
+            drain();
+        }
+        catch(IOException e){
+            //nothing more will be decoded, the buffer goes back now
+            failure = e;
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Ends the input. The decoded output has all been written by then.
+     * The decoder is closed, whether or not the input was whole.
+     * @throws IOException if the input stopped part way through a frame
+     */
+    public void finish() throws IOException {
+        try{
+            if(failure != null){
+                throw failure;
+            }
+            if(output == null){
+                return;
+            }
+            treeRetry = 0;
+            try{
+                while(advance()){
+                    //a tree may have been waiting for more input
+                }
+            }
+            catch(IOException e){
+                failure = e;
+                throw e;
+            }
+            if(step != FRAME || available() >= 8){
+                failure = new IOException("Input ended in the middle of a frame!");
+                throw failure;
+            }
+        }
+        finally{
+            close();
+        }
+        CodecMetrics.add("decode.runs", 1);
+        CodecMetrics.add("decode.frames", frames);
+        CodecMetrics.add("decode.bytes.out", written);
+    }
+
+    /**
+     * Gives the output buffer back to the pool, for a decoder given up
+     * part way through a stream. Does nothing once closed.
+     */
+    @Override
+    public void close() {
+        if(output != null){
+            BufferPool.shared().release(output);
+            output = null;
+        }
+    }
+
+    /**
+     * Takes the next step the input allows
+     * @return whether a step was taken
+     * @throws IOException if the input is damaged
+     */
+    private boolean advance() throws IOException {
+        switch(step){
+            case FRAME:
+                return readFrameHeader();
+            case REGION:
+                return readRegionHeader();
+            case CODES:
+                return decodeCodes();
+            case CHECK:
+                return checkRegion();
+            default:
+                //length of the frame, only needed when walking back
+                if(available() < 64){
+                    return false;
+                }
+                bits(32);
+                bits(32);
+                frames++;
+                step = FRAME;
+                return true;
+        }
+    }
+
+    /**
+     * Reads the header of the next frame once all of it is there
+     */
+    private boolean readFrameHeader() throws IOException {
+        if(available() < 120){
+            return false;
+        }
+        if(bits(32) != FRAME_MAGIC){
+            throw new IOException("Input is not a Huffman coded frame!");
+        }
+        frameFlags = bits(8);
+        width = bits(8);
+        int pad = bits(8);
+        length = readLong();
+        if(width == 0 || width > 2 || length < 0 || (length + pad) % width != 0){
+            throw new IOException("Frame header is damaged!");
+        }
+        if(length > limit - written){
+            throw new IOException("Frame decodes to " + length + " bytes, more than the " + limit + " allowed!");
+        }
+        symbols = (length + pad) / width;
+        decoded = 0;
+        frameWritten = 0;
+        step = REGION;
+        return true;
+    }
+
+    /**
+     * Reads the header of the next region and its tree, once all of
+     * them are there. A tree cut short is read again from the start
+     * once there is input for at least the read it stopped at.
+     */
+    private boolean readRegionHeader() throws IOException {
+        if(available() < treeRetry){
+            return false;
+        }
+        mark();
+        int flags = bits(8);
+        long regionCount = readLong();
+        int regionFilter = (flags & FILTER_FLAG) != 0 ? bits(8) : PreFilter.NONE;
+        int regionEscape = (flags & ESCAPE_FLAG) != 0 ? bits(8 * width) : -1;
+        LetterData tree = null;
+        if(!starved && regionCount > 0 && (flags & (INHERIT_FLAG | SHARED_FLAG)) == 0){
+            //region carries its own tree
+            tree = readTree(0, new int[1]);
+        }
+        if(starved){
+            reset();
+            //what was read before it stopped, and what it stopped at
+            treeRetry = available() + shortBy;
+            return false;
+        }
+        treeRetry = 0;
+        if(regionCount < 0 || regionCount > symbols - decoded){
+            throw new IOException("Region runs past the end of the frame!");
+        }
+        if(!PreFilter.isValid(regionFilter)){
+            throw new IOException("Region has a filter that is not known!");
+        }
+        if(regionCount > 0 && (flags & INHERIT_FLAG) != 0){
+            if(inherited == null){
+                throw new IOException("Region inherits a table from a frame that is not there!");
+            }
+            tree = inherited;
+        }
+        else if(regionCount > 0 && (flags & SHARED_FLAG) != 0){
+            if(shared == null || shared.getWidth() != width){
+                throw new IOException("Region was coded with a shared table that was not given!");
+            }
+            CodecMetrics.add("table.shared.uses", 1);
+            tree = shared.getRoot();
+        }
+        if(decoded == 0 && (frameFlags & INHERIT_FRAME) == 0){
+            //table later frames may inherit
+            inherited = tree;
+        }
+        root = tree;
+        escape = regionEscape;
+        filter = regionFilter;
+        count = regionCount;
+        done = 0;
+        crc.reset();
+        int size = (int) Math.min(count, PreFilter.BLOCK_SYMBOLS) * width;
+        if(block == null || block.length != size){
+            block = new byte[size];
+            plain = new byte[size];
+        }
+        fill = 0;
+        fsm = count > 0 ? stateTable(count) : null;
+        state = 0;
+        node = root;
+        escaping = false;
+        step = count > 0 ? CODES : CHECK;
+        return true;
+    }
+
+    /**
+     * Recursively reads a tree written by CodeTable.writeTree, stopping
+     * soon after the input runs out
+     * @param depth the level of the node read
+     * @param leaves the leaves read so far, counted up
+     * @return the root of the tree read
+     * @throws IOException if the tree is deeper than CodeTable allows or
+     *                     has more leaves than there are symbols
+     */
+    private LetterData readTree(int depth, int[] leaves) throws IOException {
+        if(depth > CodeTable.MAX_DEPTH){
+            throw new IOException("Tree is deeper than " + CodeTable.MAX_DEPTH + " levels!");
+        }
+        if(bits(1) != 0){
+            //leaf node, its symbol is next, or input ran out
+            if(++leaves[0] > 1 << (8 * width) && !starved){
+                throw new IOException("Tree has more leaves than there are symbols!");
+            }
+            return new LetterData((char) bits(8 * width) + "", -1);
+        }
+        LetterData curr = new LetterData();
+        curr.left = readTree(depth + 1, leaves);
+        curr.right = readTree(depth + 1, leaves);
+        return curr;
+    }
+
+    /**
+     * Picks the state table for the region's tree, building one if the
+     * region is long enough to pay for it, as HuffmanDecoder does
+     * @param regionCount the number of symbols in the region
+     * @return the table, or null to decode bit by bit
+     */
+    private ByteDecodeTable stateTable(long regionCount) {
+        if(stateTable != null && stateTable.getRoot() == root && stateTable.getEscape() == escape){
+            //same tree as before, shared or inherited
+            return stateTable;
+        }
+        int states = ByteDecodeTable.countStates(root);
+        if(states == 0 || states > ByteDecodeTable.MAX_STATES || regionCount < 512L * states){
+            return null;
+        }
+        stateTable = new ByteDecodeTable(root, escape);
+        return stateTable;
+    }
+
+    /**
+     * Decodes symbols of the region until it is done or the input runs
+     * out, keeping the state part way through a code for the next push
+     * @return whether the region was finished
+     */
+    private boolean decodeCodes() throws IOException {
+        boolean leaf = root.left == null && root.right == null;
+        while(done < count){
+            if(escaping){
+                //raw symbol after an escape
+                if(available() < 8 * width){
+                    return false;
+                }
+                escaping = false;
+                put((char) bits(8 * width));
+            }
+            else if(leaf){
+                //a single symbol, its code has no bits
+                finishSymbol(root.c.charAt(0));
+            }
+            else if(fsm == null){
+                //one bit at a time down the tree
+                if(available() < 1){
+                    return false;
+                }
+                node = bits(1) != 0 ? node.right : node.left;
+                if(node.left == null && node.right == null){
+                    char letter = node.c.charAt(0);
+                    node = root;
+                    finishSymbol(letter);
+                }
+            }
+            else if(accBits % 8 != 0){
+                //one bit at a time up to the next byte
+                if(available() < 1){
+                    return false;
+                }
+                int c = fsm.child(state, bits(1) != 0);
+                if(c >= 0){
+                    state = c;
+                }
+                else{
+                    state = 0;
+                    finishSymbol((char) (-c - 1));
+                }
+            }
+            else{
+                if(available() < 8){
+                    return false;
+                }
+                int e = fsm.entry(state, bits(8));
+                int n = fsm.count(e);
+                if(done + n < count && !fsm.escaped(e)){
+                    //every symbol of the step is wanted
+                    for(int i = 0; i < n; i++){
+                        put(fsm.symbol(e, i));
+                    }
+                    state = fsm.next(e);
+                }
+                else{
+                    //step reaches an escape or the end, stop at its last symbol
+                    for(int i = 0; i < n && done < count && !escaping; i++){
+                        char letter = fsm.symbol(e, i);
+                        if(i == n - 1 || done + 1 == count){
+                            //bits after this symbol are read again
+                            accBits += 8 - fsm.end(e, i);
+                            finishSymbol(letter);
+                        }
+                        else{
+                            put(letter);
+                        }
+                    }
+                    state = 0;
+                }
+            }
+        }
+        step = CHECK;
+        return true;
+    }
+
+    /**
+     * Outputs a decoded symbol, or waits for the raw symbol after it if
+     * it is the escape
+     */
+    private void finishSymbol(char letter) throws IOException {
+        if(letter == escape){
+            escaping = true;
+        }
+        else{
+            put(letter);
+        }
+    }
+
+    /**
+     * Adds a symbol to the block, writing the block out once it is full
+     */
+    private void put(char letter) throws IOException {
+        if(width == 1){
+            block[fill++] = (byte) letter;
+        }
+        else{
+            block[fill++] = (byte) (letter >> 8);
+            block[fill++] = (byte) letter;
+        }
+        done++;
+        if(fill == block.length){
+            finishBlock();
+        }
+    }
+
+    /**
+     * Turns the decoded block back if the region is filtered, adds it to
+     * the checksum and moves it to the output, without the padding
+     */
+    private void finishBlock() throws IOException {
+        byte[] from = block;
+        if(filter != PreFilter.NONE){
+            PreFilter.invert(filter, block, fill, plain);
+            from = plain;
+        }
+        int keep = (int) Math.min(fill, length - frameWritten);
+        crc.update(from, 0, keep);
+        for(int off = 0; off < keep; ){
+            //as much as there is room for
+            if(!output.hasRemaining()){
+                drain();
+            }
+            int n = Math.min(keep - off, output.remaining());
+            output.put(from, off, n);
+            off += n;
+        }
+        frameWritten += keep;
+        written += keep;
+        fill = 0;
+    }
+
+    /**
+     * Checks the region's checksum once it is there
+     */
+    private boolean checkRegion() throws IOException {
+        if(fill > 0){
+            finishBlock();
+        }
+        accBits -= accBits % 8;
+        if(available() < 32){
+            return false;
+        }
+        if(bits(32) != (int) crc.getValue()){
+            throw new IOException("Region ending at byte " + written + " of the output is damaged!");
+        }
+        decoded += count;
+        step = decoded < symbols ? REGION : TRAILER;
+        return true;
+    }
+
+    /**
+     * @return the number of input bits not read yet
+     */
+    private long available() {
+        return accBits + 8L * (tail - head);
+    }
+
+    /**
+     * Reads the next bits of the input, marking the decoder starved
+     * instead if there are not that many
+     * @param n the number of bits, 1 to 32
+     * @return the bits, or -1 if starved
+     */
+    private int bits(int n) {
+        if(available() < n){
+            if(!starved){
+                shortBy = (int) (n - available());
+            }
+            starved = true;
+            return -1;
+        }
+        while(accBits < n){
+            //another whole byte
+            acc = (acc << 8) | (input[head++] & 0xFF);
+            accBits += 8;
+        }
+        accBits -= n;
+        return (int) ((acc >>> accBits) & (-1L >>> (64 - n)));
+    }
+
+    private long readLong() {
+        long high = bits(32);
+        return (high << 32) | (bits(32) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Remembers the read position, so a header can be read again if
+     * the input runs out part way through it
+     */
+    private void mark() {
+        starved = false;
+        markHead = head;
+        markAcc = acc;
+        markBits = accBits;
+    }
+
+    private void reset() {
+        starved = false;
+        head = markHead;
+        acc = markAcc;
+        accBits = markBits;
+    }
+
+    /**
+     * Hands the bytes decoded so far to the channel
+     * @throws IOException
+     */
+    private void drain() throws IOException {
+        output.flip();
+        while(output.hasRemaining()){
+            out.write(output);
+        }
+        output.clear();
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return the number of frames decoded in full so far
+     */
+    public long getFrames() {
+        return frames;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Codes small messages, such as RPC payloads, without the fixed work of
+ * HuffmanEncoder. Messages are coded with a static table built into the
+ * library, so no histogram, tree or header has to be made or written,
+ * and nothing is allocated per call. The coded message is one header
+ * byte followed by the codes. A message the static table would not make
+ * smaller is stored as it is instead.
+ */
+public class SmallCodec {
+    //header byte: the table in the high bits, padding bits in the low 3
+    public static final int STORED = 0x00;
+    public static final int STATIC_TABLE = 0x10;
+    private static final int PAD_MASK = 0x07;
+    //weights of text and JSON bytes; changing them changes the format
+    private static final long[] WEIGHTS = {
+        64, 1, 1, 1, 1, 1, 1, 1, 1, 1, 398, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+        4096, 6, 2734, 1, 1, 1, 8, 1, 93, 93, 75, 16, 765, 112, 71, 41,
+        245, 268, 275, 264, 261, 263, 271, 264, 266, 266, 881, 86, 12, 51, 10, 1,
+        24, 18, 28, 18, 11, 31, 19, 3, 9, 24, 1, 2, 12, 10, 4, 20,
+        5, 1, 11, 27, 16, 2, 1, 8, 1, 1, 1, 12, 1, 12, 1, 115,
+        4, 896, 209, 431, 555, 1492, 279, 238, 256, 576, 118, 233, 400, 388, 565, 637,
+        415, 113, 794, 707, 1127, 568, 204, 165, 133, 236, 114, 195, 4, 195, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+    };
+    private static final CodeTable TABLE = new CodeTable(WEIGHTS, 1);
+    private static final ByteDecodeTable STATES = new ByteDecodeTable(TABLE.getRoot(), -1);
+    private static final long[] CODES = new long[256];
+    private static final int[] LENGTHS = new int[256];
+
+    static {
+        for(int i = 0; i < 256; i++){
+            //copied out so the coding loop reads plain arrays
+            CODES[i] = TABLE.code(i);
+            LENGTHS[i] = TABLE.codeLength(i);
+        }
+    }
+
+    /**
+     * @param length the length of a message
+     * @return the most bytes encode can write for it
+     */
+    public static int maxEncodedLength(int length) {
+        return length + 1;
+    }
+
+    /**
+     * Codes a message with the static table, or stores it if that would
+     * not make it smaller
+     * @param given the bytes holding the message
+     * @param offset the first byte of the message
+     * @param length the length of the message
+     * @param to the array to write the coded message to
+     * @param toOffset where in to the coded message starts
+     * @return the length of the coded message
+     */
+    public static int encode(byte[] given, int offset, int length, byte[] to, int toOffset) {
+        long bits = 0;
+        for(int i = offset; i < offset + length; i++){
+            //size of the coded message
+            bits += LENGTHS[given[i] & 0xFF];
+        }
+        if(bits >= 8L * length){
+            //the table does not pay off, store the message
+            room(to, toOffset, length + 1);
+            to[toOffset] = (byte) STORED;
+            System.arraycopy(given, offset, to, toOffset + 1, length);
+            return length + 1;
+        }
+        int bytes = (int) ((bits + 7) / 8);
+        room(to, toOffset, bytes + 1);
+        to[toOffset] = (byte) (STATIC_TABLE | (8 * bytes - bits));
+        int out = toOffset + 1;
+        long acc = 0;
+        int accBits = 0;
+        for(int i = offset; i < offset + length; i++){
+            //for every byte of the message
+            int symbol = given[i] & 0xFF;
+            acc = (acc << LENGTHS[symbol]) | CODES[symbol];
+            accBits += LENGTHS[symbol];
+            while(accBits >= 8){
+                //a whole byte is assembled
+                accBits -= 8;
+                to[out++] = (byte) (acc >>> accBits);
+            }
+        }
+        if(accBits > 0){
+            //last byte, padded with 0 bits
+            to[out++] = (byte) (acc << (8 - accBits));
+        }
+        return out - toOffset;
+    }
+
+    /**
+     * Decodes a message written by encode
+     * @param given the bytes holding the coded message
+     * @param offset the header byte of the coded message
+     * @param length the length of the coded message
+     * @param to the array to write the message to
+     * @param toOffset where in to the message starts
+     * @return the length of the message
+     */
+    public static int decode(byte[] given, int offset, int length, byte[] to, int toOffset) {
+        return run(given, offset, length, to, toOffset);
+    }
+
+    /**
+     * @param given the bytes holding the coded message
+     * @param offset the header byte of the coded message
+     * @param length the length of the coded message
+     * @return the length decode will write
+     */
+    public static int decodedLength(byte[] given, int offset, int length) {
+        return run(given, offset, length, null, 0);
+    }
+
+    /**
+     * Decodes a message a whole byte per step, except for the last byte
+     * which is read a bit at a time up to its padding
+     * @param to the array to write the message to, or null to only count
+     * @return the length of the message
+     */
+    private static int run(byte[] given, int offset, int length, byte[] to, int toOffset) {
+        if(length < 1){
+            throw new IllegalArgumentException("Message has no header!");
+        }
+        int header = given[offset] & 0xFF;
+        if(header == STORED){
+            if(to != null){
+                room(to, toOffset, length - 1);
+                System.arraycopy(given, offset + 1, to, toOffset, length - 1);
+            }
+            return length - 1;
+        }
+        if((header & ~PAD_MASK) != STATIC_TABLE || length < 2){
+            throw new IllegalArgumentException("Unknown message header " + header + "!");
+        }
+        int end = offset + length - 1;
+        int out = toOffset;
+        int state = 0;
+        for(int i = offset + 1; i < end; i++){
+            //every byte but the last
+            int e = STATES.entry(state, given[i] & 0xFF);
+            int count = STATES.count(e);
+            if(to != null){
+                room(to, out, count);
+                for(int j = 0; j < count; j++){
+                    to[out + j] = (byte) STATES.symbol(e, j);
+                }
+            }
+            out += count;
+            state = STATES.next(e);
+        }
+        int last = given[end] & 0xFF;
+        for(int bit = 0; bit < 8 - (header & PAD_MASK); bit++){
+            //the bits of the last byte before the padding
+            int c = STATES.child(state, ((last >> (7 - bit)) & 1) != 0);
+            if(c >= 0){
+                state = c;
+                continue;
+            }
+            if(to != null){
+                room(to, out, 1);
+                to[out] = (byte) (-c - 1);
+            }
+            out++;
+            state = 0;
+        }
+        if(state != 0){
+            throw new IllegalArgumentException("Message ends inside a code!");
+        }
+        return out - toOffset;
+    }
+
+    private static void room(byte[] to, int offset, int needed) {
+        if(to.length - offset < needed){
+            throw new IllegalArgumentException("Output buffer is too small!");
+        }
+    }
+}
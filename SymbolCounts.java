@@ -0,0 +1,215 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * A symbol histogram that can be sent to another process and merged
+ * with others. Workers count their own shards into one each, and a
+ * TableCoordinator adds them up into the counts of the whole dataset.
+ * Only symbols that occur are written, each as the gap from the one
+ * before and its count, both as variable length numbers.
+ */
+public class SymbolCounts implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MAGIC = 0x48435354; //"HCST"
+    private int width;
+    private long[] counts;
+    private long shards;
+
+    /**
+     * Creates empty counts
+     * @param symbolWidth the number of bytes per symbol, 1 or 2
+     */
+    public SymbolCounts(int symbolWidth) {
+        if(symbolWidth != 1 && symbolWidth != 2){
+            throw new IllegalArgumentException("Symbol width must be 1 or 2 bytes!");
+        }
+        width = symbolWidth;
+        counts = new long[1 << (8 * width)];
+        shards = 0;
+    }
+
+    /**
+     * Counts a whole file as one shard, the way HuffmanEncoder would
+     * @param f the file to count
+     * @param symbolWidth the number of bytes per symbol
+     * @return the counts of the file
+     * @throws IOException
+     */
+    public static SymbolCounts of(File f, int symbolWidth) throws IOException {
+        SymbolCounts c = new SymbolCounts(symbolWidth);
+        c.counts = CompressionEstimate.count(f, symbolWidth);
+        c.shards = 1;
+        return c;
+    }
+
+    /**
+     * Counts a block of bytes into these counts
+     * @param block the bytes to count
+     * @param offset the first byte to count
+     * @param length the number of bytes, a whole number of symbols
+     */
+    public void add(byte[] block, int offset, int length) {
+        if(length % width != 0){
+            throw new IllegalArgumentException("Block is not a whole number of symbols!");
+        }
+        CompressionEstimate.countSymbols(block, offset, length, width, counts);
+    }
+
+    /**
+     * Adds other counts into these, shard counts included
+     * @param other the counts to add, of the same width
+     */
+    public void merge(SymbolCounts other) {
+        if(other.width != width){
+            throw new IllegalArgumentException("Counts have a different symbol width!");
+        }
+        for(int i = 0; i < counts.length; i++){
+            counts[i] += other.counts[i];
+        }
+        shards += other.shards;
+    }
+
+    /**
+     * Builds a table from the counts. A symbol that was never counted
+     * is given the escape code, so the table can code any input. The
+     * same counts always give the same table.
+     * @return the table
+     */
+    public CodeTable toTable() {
+        return new CodeTable(counts, width, true);
+    }
+
+    /**
+     * Writes the counts in their compact form, the stream is left open
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(width);
+        writeNumber(data, shards);
+        int used = 0;
+        for(long c : counts){
+            if(c > 0){
+                used++;
+            }
+        }
+        writeNumber(data, used);
+        int last = -1;
+        for(int i = 0; i < counts.length; i++){
+            //every symbol that occurs, as a gap from the one before
+            if(counts[i] > 0){
+                writeNumber(data, i - last - 1);
+                writeNumber(data, counts[i]);
+                last = i;
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads counts written by writeTo
+     * @param in the stream to read from, left open
+     * @return the counts
+     * @throws IOException if the stream does not hold counts
+     */
+    public static SymbolCounts readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if(data.readInt() != MAGIC){
+            throw new IOException("Input is not symbol counts!");
+        }
+        SymbolCounts c;
+        try{
+            c = new SymbolCounts(data.readUnsignedByte());
+        }
+        catch(IllegalArgumentException e){
+            throw new IOException("Symbol counts are damaged!", e);
+        }
+        c.shards = readNumber(data);
+        long used = readNumber(data);
+        int symbol = -1;
+        for(long i = 0; i < used; i++){
+            //every symbol that occurs
+            long next = symbol + 1 + readNumber(data);
+            if(next >= c.counts.length){
+                throw new IOException("Symbol counts are damaged!");
+            }
+            symbol = (int) next;
+            c.counts[symbol] = readNumber(data);
+        }
+        return c;
+    }
+
+    /**
+     * Writes a number 7 bits per byte, low bits first, the top bit set
+     * on every byte but the last
+     */
+    private static void writeNumber(DataOutputStream data, long value) throws IOException {
+        while((value & ~0x7FL) != 0){
+            data.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte((int) value);
+    }
+
+    private static long readNumber(DataInputStream data) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            //until a byte without the top bit
+            int b = data.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Symbol counts are damaged!");
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        writeTo(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        SymbolCounts c = readFrom(in);
+        width = c.width;
+        counts = c.counts;
+        shards = c.shards;
+    }
+
+    /**
+     * @return the histogram, indexed by symbol
+     */
+    public long[] getCounts() {
+        return counts;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the number of shards counted into these counts
+     */
+    public long getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the number of symbols counted
+     */
+    public long getTotal() {
+        long total = 0;
+        for(long c : counts){
+            total += c;
+        }
+        return total;
+    }
+}
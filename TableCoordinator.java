@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Builds one table for a dataset spread across many workers, in two
+ * phases. First every worker counts its shards into SymbolCounts and
+ * ships them here, where they are merged. Then the table built from the
+ * merged counts is published back, and every worker codes its shards
+ * with it as a shared table. Shards then carry no trees, and any of
+ * them can be decoded with the one table.
+ */
+public class TableCoordinator {
+    private SymbolCounts merged;
+    private CodeTable table;
+
+    /**
+     * Creates a coordinator with nothing merged yet
+     * @param symbolWidth the number of bytes per symbol, 1 or 2
+     */
+    public TableCoordinator(int symbolWidth) {
+        merged = new SymbolCounts(symbolWidth);
+    }
+
+    /**
+     * Merges the counts of a worker. Safe to call from several threads.
+     * @param shard the counts to merge
+     */
+    public synchronized void add(SymbolCounts shard) {
+        if(table != null){
+            throw new IllegalStateException("Table was already built!");
+        }
+        merged.merge(shard);
+    }
+
+    /**
+     * Reads counts a worker wrote with SymbolCounts.writeTo and merges them
+     * @param in the stream to read from, left open
+     * @throws IOException if the stream does not hold counts
+     */
+    public void add(InputStream in) throws IOException {
+        add(SymbolCounts.readFrom(in));
+    }
+
+    /**
+     * Ends the counting phase and builds the table, once
+     * @return the table every worker codes with
+     */
+    public synchronized CodeTable getTable() {
+        if(table == null){
+            table = merged.toTable();
+        }
+        return table;
+    }
+
+    /**
+     * Writes the table for the workers, see CodeTable.readTable
+     * @param out the stream to write to, closed once done
+     */
+    public void publish(OutputStream out) {
+        getTable().writeTable(out);
+    }
+
+    /**
+     * @return the counts merged so far
+     */
+    public synchronized SymbolCounts getMerged() {
+        return merged;
+    }
+}
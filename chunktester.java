@@ -0,0 +1,124 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runnable checks of the ChunkStore: edited copies of a file only add
+ * the chunks around their edits, and every stored file comes back the
+ * same, also after the store is opened again. Throws on the first
+ * check that does not hold.
+ */
+public class chunktester {
+    private static int checks;
+
+    public static void main(String[] args) throws IOException {
+        File dir = Files.createTempDirectory("chunktester").toFile();
+        try{
+            Random r = new Random(4);
+            byte[] base = text(r, 2000000);
+            byte[][] versions = {
+                base,
+                insert(base, 10, "an insert near the start".getBytes()),
+                insert(base, 1000000, "an insert in the middle".getBytes()),
+                remove(base, 1500000, 3000),
+                overwrite(base, 700000, "changed bytes".getBytes()),
+                base.clone(),
+                new byte[0]
+            };
+            ChunkStore store = new ChunkStore(dir, new EncodeOptions());
+            File given = new File(dir.getParentFile(), dir.getName() + ".given");
+            for(int v = 0; v < versions.length; v++){
+                //every version stored under a name of its own
+                Files.write(given.toPath(), versions[v]);
+                ChunkStore.Manifest m = store.put("v" + v, given);
+                check(m.getLength() == versions[v].length, "v" + v + " stored at the wrong length");
+                if(v == 0){
+                    check(m.getNewChunks() == m.getChunkCount(), "first file found chunks in an empty store");
+                }
+                else if(v == 5 || v == 6){
+                    //a copy of the first, and an empty file
+                    check(m.getNewChunks() == 0, "v" + v + " added " + m.getNewChunks() + " chunks");
+                }
+                else{
+                    //one edit changes one or two chunks, a cut point may move
+                    check(m.getNewChunks() <= 3, "v" + v + " added " + m.getNewChunks() + " chunks for one edit");
+                    check(m.getNewBytes() < versions[v].length / 20, "v" + v + " added " + m.getNewBytes() + " bytes");
+                }
+            }
+            given.delete();
+            check(store.getPackSize() < base.length, "pack is larger than a single version");
+            check(store.list().size() == versions.length, "store lists " + store.list().size() + " files");
+            getAll(store, dir, versions);
+
+            //the index and table are read back from disk
+            ChunkStore reopened = new ChunkStore(dir, new EncodeOptions());
+            check(reopened.getChunkCount() == store.getChunkCount(), "reopened store has other chunks");
+            getAll(reopened, dir, versions);
+            System.out.println(checks + " checks passed, " + store.getChunkCount() + " chunks in a pack of " + store.getPackSize() + " bytes");
+        }
+        finally{
+            delete(dir);
+        }
+    }
+
+    private static void getAll(ChunkStore store, File dir, byte[][] versions) throws IOException {
+        File got = new File(dir.getParentFile(), dir.getName() + ".got");
+        for(int v = 0; v < versions.length; v++){
+            //every version back, byte for byte
+            store.get("v" + v, got);
+            check(Arrays.equals(versions[v], Files.readAllBytes(got.toPath())), "v" + v + " came back different");
+        }
+        got.delete();
+    }
+
+    private static void check(boolean holds, String what) {
+        if(!holds){
+            throw new IllegalStateException(what + "!");
+        }
+        checks++;
+    }
+
+    private static byte[] insert(byte[] b, int at, byte[] added) {
+        byte[] out = new byte[b.length + added.length];
+        System.arraycopy(b, 0, out, 0, at);
+        System.arraycopy(added, 0, out, at, added.length);
+        System.arraycopy(b, at, out, at + added.length, b.length - at);
+        return out;
+    }
+
+    private static byte[] remove(byte[] b, int at, int count) {
+        byte[] out = new byte[b.length - count];
+        System.arraycopy(b, 0, out, 0, at);
+        System.arraycopy(b, at + count, out, at, b.length - at - count);
+        return out;
+    }
+
+    private static byte[] overwrite(byte[] b, int at, byte[] with) {
+        byte[] out = b.clone();
+        System.arraycopy(with, 0, out, at, with.length);
+        return out;
+    }
+
+    private static byte[] text(Random r, int length) {
+        String[] words = {"store ", "every ", "chunk ", "once ", "and ", "name ", "it ", "by ", "its ", "hash\n"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while(out.size() < length){
+            byte[] w = words[r.nextInt(words.length)].getBytes();
+            out.write(w, 0, w.length);
+        }
+        return Arrays.copyOf(out.toByteArray(), length);
+    }
+
+    private static void delete(File f) {
+        File[] inside = f.listFiles();
+        if(inside != null){
+            for(File g : inside){
+                delete(g);
+            }
+        }
+        f.delete();
+    }
+}
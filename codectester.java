@@ -0,0 +1,318 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runnable checks of the coder: every decoder gets back what every
+ * encoder setting wrote, cut short and forged frames are refused, and
+ * a shared table that lacks a symbol fails the encode. Throws on the
+ * first check that does not hold.
+ */
+public class codectester {
+    private static File dir;
+    private static int checks;
+
+    public static void main(String[] args) throws IOException {
+        dir = Files.createTempDirectory("codectester").toFile();
+        try{
+            Random r = new Random(1);
+            byte[][] inputs = {new byte[0], {7}, same(5000), text(r, 200001), numbers(r, 40000), noise(r, 30001)};
+            long[] counts = new long[256];
+            counts['e'] = 3;
+            counts['t'] = 2;
+            counts[' '] = 1;
+            EncodeOptions[] settings = {
+                new EncodeOptions(),
+                new EncodeOptions().setSymbolWidth(2),
+                new EncodeOptions().setSample(1000, true),
+                new EncodeOptions().setAdaptive(true),
+                new EncodeOptions().setPreFilters(true),
+                new EncodeOptions().setPairCodes(true),
+                new EncodeOptions().setSharedTable(new CodeTable(counts, 1, true))
+            };
+            for(EncodeOptions opts : settings){
+                //every input through every decoder
+                for(byte[] input : inputs){
+                    roundTrip(input, opts, false);
+                }
+                roundTrip(inputs[3], opts, true);
+            }
+            truncated(inputs[3]);
+            forged();
+            missingSymbol();
+            failedAppend();
+            System.out.println(checks + " checks passed");
+        }
+        finally{
+            for(File f : dir.listFiles()){
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Encodes the input and decodes it with each decoder
+     * @param input the bytes to code
+     * @param opts the options to code them with
+     * @param parallel true -> code with the ParallelEncoder
+     */
+    private static void roundTrip(byte[] input, EncodeOptions opts, boolean parallel) throws IOException {
+        CodeTable table = opts.getSharedTable();
+        File given = new File(dir, "given");
+        File coded = new File(dir, "coded");
+        File decoded = new File(dir, "decoded");
+        Files.write(given.toPath(), input);
+        if(parallel){
+            new ParallelEncoder(4, opts).encode(given, coded);
+        }
+        else{
+            HuffmanEncoder encoder = new HuffmanEncoder(given, coded, opts);
+            check(encoder.getFailure() == null, "encode failed");
+        }
+        byte[] frame = Files.readAllBytes(coded.toPath());
+        String name = input.length + " bytes, width " + opts.getSymbolWidth();
+
+        if(table == null){
+            //only the file decoders have no table to take
+            HuffmanDecoder mapped = new HuffmanDecoder(coded, decoded);
+            check(mapped.getFailure() == null, "mapped decode failed, " + name);
+            check(Arrays.equals(input, Files.readAllBytes(decoded.toPath())), "mapped decode differs, " + name);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new HuffmanDecoder(new ByteArrayInputStream(frame), out, table);
+        check(Arrays.equals(input, out.toByteArray()), "stream decode differs, " + name);
+
+        out = new ByteArrayOutputStream();
+        new HuffmanDecoder(frame, out, table);
+        check(Arrays.equals(input, out.toByteArray()), "byte decode differs, " + name);
+
+        out = new ByteArrayOutputStream();
+        new HuffmanDecoder(new ByteArrayInputStream(frame), Channels.newChannel(out), table);
+        check(Arrays.equals(input, out.toByteArray()), "channel decode differs, " + name);
+
+        ByteBuffer buffer = ByteBuffer.allocate(input.length);
+        new HuffmanDecoder(new ByteArrayInputStream(frame), buffer, table);
+        check(Arrays.equals(input, buffer.array()), "buffer decode differs, " + name);
+
+        new ParallelDecoder(4, table).decode(coded, decoded);
+        check(Arrays.equals(input, Files.readAllBytes(decoded.toPath())), "parallel decode differs, " + name);
+
+        for(int step : new int[]{1, 37, 4096}){
+            //a few bytes at a time, as from a socket
+            out = new ByteArrayOutputStream();
+            PushDecoder push = new PushDecoder(Channels.newChannel(out), table);
+            for(int i = 0; i < frame.length; i += step){
+                push.push(ByteBuffer.wrap(frame, i, Math.min(step, frame.length - i)));
+            }
+            push.finish();
+            check(Arrays.equals(input, out.toByteArray()), "push decode differs, " + name + ", step " + step);
+        }
+    }
+
+    /**
+     * Cuts a frame short at several points, every decoder has to fail
+     * @param input the bytes to code
+     */
+    private static void truncated(byte[] input) throws IOException {
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        new HuffmanEncoder(input, whole, new EncodeOptions());
+        byte[] frame = whole.toByteArray();
+        File cut = new File(dir, "cut");
+        for(int length : new int[]{3, 20, frame.length / 2, frame.length - 9, frame.length - 1}){
+            //every decoder on the same cut
+            byte[] part = Arrays.copyOf(frame, length);
+            Files.write(cut.toPath(), part);
+            check(new HuffmanDecoder(cut, new File(dir, "decoded")).getFailure() != null, "mapped decode took a cut frame");
+            check(new HuffmanDecoder(new ByteArrayInputStream(part), new ByteArrayOutputStream(), null).getFailure() != null,
+                    "stream decode took a cut frame");
+            check(new HuffmanDecoder(part, new ByteArrayOutputStream(), null).getFailure() != null, "byte decode took a cut frame");
+            check(fails(() -> new ParallelDecoder(2, null).decode(cut, new File(dir, "decoded"))), "parallel decode took a cut frame");
+            check(fails(() -> {
+                PushDecoder push = new PushDecoder(Channels.newChannel(new ByteArrayOutputStream()), null);
+                push.push(ByteBuffer.wrap(part));
+                push.finish();
+            }), "push decode took a cut frame");
+        }
+    }
+
+    /**
+     * Frames with a bad magic, a flipped bit in the codes, a header
+     * claiming a huge length over a region of one symbol, and a tree
+     * with no end
+     */
+    private static void forged() throws IOException {
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        new HuffmanEncoder(text(new Random(2), 50000), whole, new EncodeOptions());
+        byte[] frame = whole.toByteArray();
+
+        byte[] magic = frame.clone();
+        magic[0] ^= 1;
+        check(new HuffmanDecoder(magic, new ByteArrayOutputStream(), null).getFailure() != null, "bad magic was taken");
+
+        byte[] flipped = frame.clone();
+        flipped[frame.length / 2] ^= 0x10;
+        check(new HuffmanDecoder(flipped, new ByteArrayOutputStream(), null).getFailure() != null, "damaged codes were taken");
+        check(fails(() -> {
+            PushDecoder push = new PushDecoder(Channels.newChannel(new ByteArrayOutputStream()), null);
+            push.push(ByteBuffer.wrap(flipped));
+            push.finish();
+        }), "push decode took damaged codes");
+
+        //one symbol, so the region's codes have no bits at all
+        ByteArrayOutputStream one = new ByteArrayOutputStream();
+        new HuffmanEncoder(same(1000), one, new EncodeOptions());
+        ByteBuffer huge = ByteBuffer.wrap(one.toByteArray());
+        huge.putLong(7, 1L << 40);
+        huge.putLong(16, 1L << 40);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HuffmanDecoder limited = new HuffmanDecoder(new ByteArrayInputStream(huge.array()), out, null, 1 << 20);
+        check(limited.getFailure() != null && out.size() == 0, "huge frame was decoded past the limit");
+        ByteArrayOutputStream pushed = new ByteArrayOutputStream();
+        check(fails(() -> {
+            PushDecoder push = new PushDecoder(Channels.newChannel(pushed), null, 1 << 20);
+            push.push(ByteBuffer.wrap(huge.array()));
+            push.finish();
+        }) && pushed.size() == 0, "push decode went past the limit on a huge frame");
+
+        //a tree of nothing but 0 bits, one level deeper for every bit
+        ByteBuffer deep = ByteBuffer.allocate(24 + 100000);
+        deep.putInt(0x48554646).put((byte) 0).put((byte) 1).put((byte) 0).putLong(10);
+        deep.put((byte) 0).putLong(10);
+        File deepFile = new File(dir, "deep");
+        Files.write(deepFile.toPath(), deep.array());
+        check(new HuffmanDecoder(deep.array(), new ByteArrayOutputStream(), null).getFailure() != null, "endless tree was taken");
+        check(fails(() -> new ParallelDecoder(2, null).decode(deepFile, new File(dir, "decoded"))), "parallel decode took an endless tree");
+        check(fails(() -> {
+            PushDecoder push = new PushDecoder(Channels.newChannel(new ByteArrayOutputStream()), null);
+            push.push(ByteBuffer.wrap(deep.array()));
+            push.finish();
+        }), "push decode took an endless tree");
+        byte[] deepTable = new byte[100000];
+        deepTable[0] = 1;
+        check(fails(() -> CodeTable.readTable(new ByteArrayInputStream(deepTable))), "endless table was read");
+    }
+
+    /**
+     * Codes bytes with a shared table that has no code for one of them
+     * and no escape
+     */
+    private static void missingSymbol() throws IOException {
+        long[] counts = new long[256];
+        counts['a'] = 5;
+        counts['b'] = 3;
+        EncodeOptions opts = new EncodeOptions().setSharedTable(new CodeTable(counts, 1));
+        HuffmanEncoder encoder = new HuffmanEncoder("abcab".getBytes(), new ByteArrayOutputStream(), opts);
+        check(encoder.getFailure() != null, "symbol missing from the shared table was coded");
+
+        File given = new File(dir, "given");
+        Files.write(given.toPath(), "abcab".getBytes());
+        check(fails(() -> new ParallelEncoder(2, opts).encode(given, new File(dir, "coded"))),
+                "parallel encoder coded a symbol missing from the shared table");
+
+        HuffmanEncoder fits = new HuffmanEncoder("abba".getBytes(), new ByteArrayOutputStream(), opts);
+        check(fits.getFailure() == null, "shared table could not code its own symbols");
+
+        counts = new long[1 << 16];
+        counts[1] = 1;
+        EncodeOptions wide = new EncodeOptions().setSharedTable(new CodeTable(counts, 2));
+        HuffmanEncoder wrongWidth = new HuffmanEncoder("abba".getBytes(), new ByteArrayOutputStream(), wide);
+        check(wrongWidth.getFailure() != null, "shared table of another width was used");
+    }
+
+    /**
+     * Appends a frame that fails part way onto a file of good frames,
+     * with both encoders; the good frames still have to decode
+     */
+    private static void failedAppend() throws IOException {
+        File given = new File(dir, "given");
+        File log = new File(dir, "log");
+        byte[] first = text(new Random(3), 30000);
+        Files.write(given.toPath(), first);
+        new HuffmanEncoder(given, log, new EncodeOptions());
+        new HuffmanEncoder(given, log, new EncodeOptions().setAppend(true, true));
+        long length = log.length();
+        byte[] both = new byte[2 * first.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(first, 0, both, first.length, first.length);
+
+        long[] counts = new long[256];
+        counts['a'] = 5;
+        EncodeOptions missing = new EncodeOptions().setSharedTable(new CodeTable(counts, 1)).setAppend(true, false);
+        Files.write(given.toPath(), "aaaaabaaaa".getBytes());
+        check(new HuffmanEncoder(given, log, missing).getFailure() != null, "append of a missing symbol did not fail");
+        check(log.length() == length, "failed append left " + (log.length() - length) + " bytes behind");
+        check(fails(() -> new ParallelEncoder(2, missing).encode(given, log)), "parallel append of a missing symbol did not fail");
+        check(log.length() == length, "failed parallel append left " + (log.length() - length) + " bytes behind");
+
+        File decoded = new File(dir, "decoded");
+        check(new HuffmanDecoder(log, decoded).getFailure() == null, "frames before a failed append do not decode");
+        check(Arrays.equals(both, Files.readAllBytes(decoded.toPath())), "frames before a failed append changed");
+        new ParallelDecoder(2, null).decode(log, decoded);
+        check(Arrays.equals(both, Files.readAllBytes(decoded.toPath())), "frames before a failed append do not decode in parallel");
+        check(HuffmanEncoder.readLastTable(log, 1) != null, "table of the last good frame is lost");
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    private static boolean fails(Step step) {
+        try{
+            step.run();
+            return false;
+        }
+        catch(IOException e){
+            return true;
+        }
+    }
+
+    private static void check(boolean holds, String what) {
+        if(!holds){
+            throw new IllegalStateException(what + "!");
+        }
+        checks++;
+    }
+
+    private static byte[] same(int length) {
+        byte[] b = new byte[length];
+        Arrays.fill(b, (byte) 'z');
+        return b;
+    }
+
+    private static byte[] text(Random r, int length) {
+        String[] words = {"the ", "huffman ", "tree ", "codes ", "each ", "symbol ", "by ", "how ", "often ", "it ", "comes\n"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while(out.size() < length){
+            byte[] w = words[r.nextInt(words.length)].getBytes();
+            out.write(w, 0, w.length);
+        }
+        return Arrays.copyOf(out.toByteArray(), length);
+    }
+
+    /**
+     * @return slowly changing big endian ints, the kind filters help
+     */
+    private static byte[] numbers(Random r, int count) {
+        ByteBuffer b = ByteBuffer.allocate(4 * count);
+        int v = 100000;
+        for(int i = 0; i < count; i++){
+            v += r.nextInt(64) - 32;
+            b.putInt(v);
+        }
+        return b.array();
+    }
+
+    private static byte[] noise(Random r, int length) {
+        byte[] b = new byte[length];
+        r.nextBytes(b);
+        return b;
+    }
+}